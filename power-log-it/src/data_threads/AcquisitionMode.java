@@ -0,0 +1,11 @@
+package data_threads;
+
+/**
+ * How the serial data is read from the connected device.
+ *
+ * EVENT_LISTENER: bytes are read on the jssc event thread when an RXCHAR event fires.
+ * READER_THREAD: a dedicated thread performs blocking bulk reads of the serial port.
+ */
+public enum AcquisitionMode {
+	EVENT_LISTENER, READER_THREAD
+}
@@ -0,0 +1,220 @@
+package data_threads;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Chooses the fastest baud rate which both the device and the link can
+ * sustain after a connection has been made.
+ *
+ * The device lists its baud rates in response to GET_BAUD_RATES. Rates above
+ * the maximum of the device profile are ignored, and the remaining rates are
+ * tried from the highest to the lowest with SET_BAUD_RATE. A rate is judged on
+ * the errors seen while keep-alive commands are exchanged, not on how quickly
+ * they are answered, as the round trip of a short frame hardly depends on the
+ * baud rate. It is only kept if every keep-alive is answered and at least
+ * MIN_PROBE_BYTES are received without a framing, checksum or device error.
+ *
+ * A rate which fails is not tried again for REJECTED_RATE_TIME, so a device
+ * which is stuck at a bad rate is not negotiated back onto it after
+ * reconnecting, but a link which has been fixed is tried again later.
+ */
+class BaudRateNegotiator {
+	/** Number of keep-alive commands sent in each burst of a probe */
+	private static final int PROBE_COMMANDS = 16;
+
+	/** A rate passes once this many bytes have been received without an error */
+	private static final int MIN_PROBE_BYTES = 2048;
+
+	/** How long a probe can take (Milliseconds) */
+	private static final int PROBE_TIME_OUT = 1000;
+
+	/** How long to wait after a rate change for the bytes sent at the old rate (Milliseconds) */
+	private static final int SETTLE_TIME = 20;
+
+	/** Number of times the device is asked to go back to the starting rate */
+	private static final int RESTORE_ATTEMPTS = 3;
+
+	/** How long a rate which failed the probe is skipped (Milliseconds) */
+	private static final long REJECTED_RATE_TIME = 10 * 60 * 1000;
+
+	/** Used to send the commands and change the baud rate */
+	private final SerialCommsRunnable serialCommsRunner;
+
+	/** Baud rates which failed the probe, and when they can be tried again (nanoTime) */
+	private final Map<Integer, Long> rejectedRates = new HashMap<>();
+
+	BaudRateNegotiator(SerialCommsRunnable serialCommsRunner) {
+		this.serialCommsRunner = serialCommsRunner;
+	}
+
+	/**
+	 * Moves the connection to the fastest baud rate that passes the probe.
+	 * @return the baud rate in use when negotiation finished
+	 */
+	int negotiate() {
+		int startRate = serialCommsRunner.getDataRate();
+
+		int[] rates;
+		try {
+			byte[] response = serialCommsRunner.submitCommand(SerialCommsRunnable.GET_BAUD_RATES, null, true).get();
+			rates = parseBaudRates(response, response.length);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return startRate;
+		} catch (ExecutionException | CancellationException | NumberFormatException e) {
+			System.err.println("Failed to read the device's baud rates: " + e.getMessage());
+			return startRate;
+		}
+
+		// a link which fails at the current rate will not do better at a faster one
+		if (!probe()) {
+			System.err.println("Baud rate probe failed at " + startRate + " baud, keeping the current rate");
+			return startRate;
+		}
+
+		int maxRate = serialCommsRunner.getMaxBaudRate();
+		Arrays.sort(rates);
+		for (int i = rates.length - 1; i >= 0; i--) {
+			int rate = rates[i];
+			if (rate <= startRate)
+				break;
+			if (rate > maxRate) {
+				System.err.println(rate + " baud is above the device profile's maximum of " + maxRate);
+				continue;
+			}
+			if (isRejected(rate))
+				continue;
+
+			if (!serialCommsRunner.changeBaudRate(rate))
+				continue;
+
+			if (probe()) {
+				System.out.println("Using " + rate + " baud");
+				return rate;
+			}
+
+			System.err.println(rate + " baud failed the probe");
+			rejectedRates.put(rate, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REJECTED_RATE_TIME));
+			if (!restoreRate(rate, startRate))
+				System.err.println("Failed to move the device back to " + startRate + " baud");
+		}
+
+		return serialCommsRunner.getDataRate();
+	}
+
+	private boolean isRejected(int rate) {
+		Long until = rejectedRates.get(rate);
+		if (until == null)
+			return false;
+		if (System.nanoTime() - until < 0)
+			return true;
+		rejectedRates.remove(rate);
+		return false;
+	}
+
+	/**
+	 * Moves the device and then the port back to the starting rate. The
+	 * device is told at the rate it is using, and the port follows even if the
+	 * acknowledgement is lost. If the device does not answer at the starting
+	 * rate it did not switch, so it is asked again at the failed rate.
+	 * @param rate the rate which failed the probe
+	 * @param startRate the rate to move back to
+	 * @return true if the device answers at the starting rate
+	 */
+	private boolean restoreRate(int rate, int startRate) {
+		for (int i = 0; i < RESTORE_ATTEMPTS && !Thread.currentThread().isInterrupted(); i++) {
+			if (!serialCommsRunner.changeBaudRate(startRate))
+				serialCommsRunner.setPortBaudRate(startRate);
+			if (isAnswering())
+				return true;
+
+			serialCommsRunner.setPortBaudRate(rate);
+		}
+		serialCommsRunner.setPortBaudRate(startRate);
+		return false;
+	}
+
+	/**
+	 * @return true if a keep-alive is answered at the current rate
+	 */
+	private boolean isAnswering() {
+		serialCommsRunner.flushInputBuffer();
+		try {
+			serialCommsRunner.submitCommand(SerialCommsRunnable.KEEP_ALIVE_CMD, null, false)
+					.get(PROBE_TIME_OUT, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException | CancellationException | TimeoutException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Sends bursts of keep-alive commands until MIN_PROBE_BYTES have been
+	 * received, after throwing away the bytes sent before the rate changed.
+	 * @return true if every command was answered without a link error
+	 */
+	private boolean probe() {
+		try {
+			Thread.sleep(SETTLE_TIME);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		serialCommsRunner.flushInputBuffer();
+
+		IngestMetrics metrics = serialCommsRunner.getIngestMetrics();
+		long linkErrors = serialCommsRunner.getLinkErrors();
+		long deviceErrors = metrics.getDeviceErrors();
+		long bytesReceived = metrics.getBytesReceived();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROBE_TIME_OUT);
+
+		List<Future<byte[]>> responses = new ArrayList<>(PROBE_COMMANDS);
+		try {
+			do {
+				for (int i = 0; i < PROBE_COMMANDS; i++)
+					responses.add(serialCommsRunner.submitCommand(SerialCommsRunnable.KEEP_ALIVE_CMD, null, false));
+				for (Future<byte[]> response : responses)
+					response.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				responses.clear();
+
+				if (serialCommsRunner.getLinkErrors() != linkErrors || metrics.getDeviceErrors() != deviceErrors)
+					return false;
+			} while (metrics.getBytesReceived() - bytesReceived < MIN_PROBE_BYTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException | CancellationException | TimeoutException e) {
+			return false;
+		} finally {
+			for (Future<byte[]> response : responses)
+				response.cancel(false);
+		}
+
+		return true;
+	}
+
+	/**
+	 * @param data the GET_BAUD_RATES response, a comma separated list of rates
+	 * @return the baud rates listed by the device
+	 */
+	static int[] parseBaudRates(byte[] data, int length) {
+		String[] rateStrings = new String(data, 0, length, StandardCharsets.US_ASCII).split(",");
+		int[] rates = new int[rateStrings.length];
+		for (int i = 0; i < rateStrings.length; i++)
+			rates[i] = Integer.parseInt(rateStrings[i].trim());
+		return rates;
+	}
+}
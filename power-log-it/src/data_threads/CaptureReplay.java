@@ -0,0 +1,140 @@
+package data_threads;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds a file recorded by RawCapture back through the frame decoder and the
+ * data path of a SerialCommsRunnable, exactly as the bytes were read from the
+ * port. Used to reproduce problems seen with a real device, and to benchmark
+ * the decoder against real traffic.
+ *
+ * The bytes are replayed either with the timing they were received with, or
+ * as fast as they can be decoded. The runnable must not be connected to a
+ * device during the replay.
+ */
+public class CaptureReplay implements Runnable {
+	/** Size of the buffer the file is read through */
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final File file;
+	private final SerialCommsRunnable serialCommsRunner;
+	private final boolean realTime;
+
+	private long bytesReplayed;
+	private long elapsedNanos;
+
+	/**
+	 * @param file a file recorded by RawCapture
+	 * @param serialCommsRunner decodes and stores the replayed data
+	 * @param realTime true to replay with the original timing, false to replay as fast as possible
+	 */
+	public CaptureReplay(File file, SerialCommsRunnable serialCommsRunner, boolean realTime) {
+		this.file = file;
+		this.serialCommsRunner = serialCommsRunner;
+		this.realTime = realTime;
+	}
+
+	@Override
+	public void run() {
+		try {
+			replay();
+			System.out.printf("Replayed %d bytes from %s in %.3f s%n",
+					bytesReplayed, file.getName(), elapsedNanos / 1e9);
+		} catch (InterruptedException e) {
+			System.err.println("Capture replay interrupted");
+		} catch (IOException | IllegalStateException e) {
+			System.err.println("Failed to replay " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Replays the file on the calling thread.
+	 */
+	public void replay() throws IOException, InterruptedException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.flip();
+
+			if (!fill(channel, buffer, RawCapture.HEADER_LENGTH))
+				throw new EOFException("Capture file is empty");
+			if (buffer.getLong() != RawCapture.MAGIC)
+				throw new IOException("Not a capture file");
+			int model = buffer.getInt();
+			int firmwareVersion = buffer.getInt();
+			byte dataFormat = buffer.get();
+			long captureStart = buffer.getLong();
+			System.out.printf("Replaying capture of model %d started at %tc%n", model, captureStart);
+
+			serialCommsRunner.startReplay(model, firmwareVersion, dataFormat == SerialCommsRunnable.DATA_FORMAT_BINARY);
+
+			long startTime = System.nanoTime();
+			byte[] bytes = new byte[BUFFER_SIZE];
+			while (fill(channel, buffer, RawCapture.RECORD_HEADER_LENGTH)) {
+				long recordTime = buffer.getLong();
+				int length = buffer.getInt();
+				if (length < 0)
+					throw new IOException("Invalid record length " + length);
+
+				if (realTime) {
+					long delay = recordTime - (System.nanoTime() - startTime);
+					if (delay > 0)
+						TimeUnit.NANOSECONDS.sleep(delay);
+				}
+
+				// records larger than the buffer are replayed in pieces
+				int remaining = length;
+				while (remaining > 0) {
+					int chunk = Math.min(remaining, BUFFER_SIZE);
+					if (!fill(channel, buffer, chunk))
+						throw new EOFException("Capture file is truncated");
+					buffer.get(bytes, 0, chunk);
+					serialCommsRunner.replayBytes(bytes, 0, chunk);
+					remaining -= chunk;
+				}
+				bytesReplayed += length;
+			}
+			elapsedNanos = System.nanoTime() - startTime;
+		}
+	}
+
+	/**
+	 * Reads from the file until the buffer holds at least the number of bytes.
+	 * @return false if the end of the file was reached before any more bytes were read
+	 */
+	private static boolean fill(FileChannel channel, ByteBuffer buffer, int numBytes) throws IOException {
+		if (buffer.remaining() >= numBytes)
+			return true;
+
+		buffer.compact();
+		try {
+			while (buffer.position() < numBytes) {
+				if (channel.read(buffer) < 0) {
+					if (buffer.position() == 0)
+						return false;
+					throw new EOFException("Capture file is truncated");
+				}
+			}
+		} finally {
+			buffer.flip();
+		}
+		return true;
+	}
+
+	public long getBytesReplayed() {
+		return bytesReplayed;
+	}
+
+	/**
+	 * @return how long the replay took (Nanoseconds)
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+}
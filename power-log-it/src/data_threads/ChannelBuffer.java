@@ -0,0 +1,402 @@
+package data_threads;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded buffer holding the points of one channel between the thread
+ * acquiring the data and the consumers draining it, e.g. the data models.
+ *
+ * The points are held in a ring of primitive arrays, one for the times and one
+ * for the values, so adding a point allocates nothing. There is a single
+ * producer, which writes points with add and makes them visible to the
+ * consumers in batches with publish. Each point is written once, and every
+ * consumer drains it through its own cursor, in batches into its own arrays.
+ * The sequence numbers of the next point each consumer reads (its head) and of
+ * the next point published (tail) are the only state shared by the threads.
+ *
+ * When the buffer is full for the slowest consumer the overflow policy decides
+ * what happens to a new point: the oldest point is dropped, the new point is
+ * dropped, or the new point is spilled to a temporary file and read back by
+ * later drains. Spilled points are always drained after the points held in
+ * memory, so the order of the points is kept.
+ *
+ * The buffer is above its high watermark from when it is 3/4 full until it has
+ * been drained to below 1/4 full, the producer uses this to slow the device.
+ */
+class ChannelBuffer {
+	/** Size of each spilled point: time (8) and value (8) */
+	private static final int SPILL_RECORD_LENGTH = 16;
+
+	/** Spilled points are written in blocks of this many bytes */
+	private static final int SPILL_BLOCK_SIZE = 1 << 16;
+
+	/**
+	 * The position of one consumer in the buffer.
+	 */
+	private static final class Cursor {
+		/** Sequence number of the next point to be drained, only moved forwards */
+		final AtomicLong head;
+
+		/** Number of spilled points this consumer has read, guarded by spillLock */
+		long spillRead;
+
+		Cursor(long head, long spillRead) {
+			this.head = new AtomicLong(head);
+			this.spillRead = spillRead;
+		}
+	}
+
+	/** The ring, its length is the capacity rounded up to a power of 2 */
+	private final long[] times;
+	private final double[] values;
+	private final int mask;
+	private final int capacity;
+	private final OverflowPolicy policy;
+
+	/** The consumers, replaced when a consumer is added */
+	private volatile Cursor[] cursors;
+
+	/** Sequence number after the last published point, only set by the producer */
+	private final AtomicLong tail = new AtomicLong();
+
+	/** Sequence number of the next point to be written, only used by the producer */
+	private long writeSequence;
+
+	/** No consumer's head is before this, only used by the producer */
+	private long minHead;
+
+	/** Counts the points dropped or spilled, shared by the buffers of a device */
+	private final AtomicLong droppedPoints;
+	private final AtomicLong spilledPoints;
+
+	private volatile boolean aboveHighWatermark;
+
+	/** The spill file, created when the first point is spilled, guarded by spillLock */
+	private final Object spillLock = new Object();
+	private File spillFile;
+	private FileChannel spillChannel;
+	private final ByteBuffer spillBlock = ByteBuffer.allocate(SPILL_BLOCK_SIZE);
+
+	/** The spilled points are read back through this block, guarded by spillLock */
+	private final ByteBuffer spillReadBlock = ByteBuffer.allocate(SPILL_BLOCK_SIZE);
+	private long spillWritePosition;
+
+	/** Number of points spilled since the spill file was created, only changed under spillLock */
+	private volatile long spillWritten;
+
+	/** Number of spilled points not yet read back by every consumer, only changed under spillLock */
+	private volatile long spillCount;
+
+	/**
+	 * @param capacity the number of points held in memory
+	 * @param policy what to do with a point which does not fit
+	 * @param numConsumers the number of consumers, more can be added later
+	 * @param droppedPoints counts the points which are dropped, once for each consumer which misses them
+	 * @param spilledPoints counts the points which are spilled to disk
+	 */
+	ChannelBuffer(int capacity, OverflowPolicy policy, int numConsumers,
+			AtomicLong droppedPoints, AtomicLong spilledPoints) {
+		int length = Integer.highestOneBit(capacity);
+		if (length < capacity)
+			length <<= 1;
+		this.times = new long[length];
+		this.values = new double[length];
+		this.mask = length - 1;
+		this.capacity = capacity;
+		this.policy = policy;
+		this.droppedPoints = droppedPoints;
+		this.spilledPoints = spilledPoints;
+
+		cursors = new Cursor[numConsumers];
+		for (int i = 0; i < numConsumers; i++)
+			cursors[i] = new Cursor(0, 0);
+	}
+
+	/**
+	 * Adds a consumer which drains the points published from now on.
+	 * @return the index of the consumer
+	 */
+	int addConsumer() {
+		synchronized (spillLock) {
+			Cursor[] current = cursors;
+			Cursor[] added = Arrays.copyOf(current, current.length + 1);
+			// the producer's minimum head is never after the tail
+			added[current.length] = new Cursor(tail.get(), spillWritten);
+			cursors = added;
+			return current.length;
+		}
+	}
+
+	/**
+	 * Adds a point and publishes it, called by the thread acquiring the data.
+	 * @param time the time of the point (Epoch milliseconds)
+	 */
+	void offer(long time, double value) {
+		add(time, value);
+		publish();
+	}
+
+	/**
+	 * Adds a point without making it visible to the consumers, called by the
+	 * thread acquiring the data. The point is drained after the next publish.
+	 * @param time the time of the point (Epoch milliseconds)
+	 */
+	void add(long time, double value) {
+		// once points are spilled, later points follow them to keep the order
+		if (spillCount == 0 && (writeSequence - minHead < capacity || writeSequence - updateMinHead() < capacity)) {
+			write(time, value);
+			if (writeSequence - minHead >= capacity - capacity / 4
+					&& writeSequence - updateMinHead() >= capacity - capacity / 4)
+				aboveHighWatermark = true;
+			return;
+		}
+
+		// the consumers must see the points in memory before any which are dropped or spilled
+		publish();
+		aboveHighWatermark = true;
+		switch (policy) {
+		case DROP_OLDEST:
+			// move every consumer which is a whole buffer behind past its oldest point
+			for (Cursor cursor : cursors) {
+				long h;
+				while (writeSequence - (h = cursor.head.get()) >= capacity) {
+					long next = writeSequence - capacity + 1;
+					if (cursor.head.compareAndSet(h, next))
+						droppedPoints.addAndGet(next - h);
+				}
+			}
+			minHead = writeSequence - capacity + 1;
+			write(time, value);
+			publish();
+			break;
+
+		case DROP_NEWEST:
+			// every consumer misses the new point
+			droppedPoints.addAndGet(cursors.length);
+			break;
+
+		case SPILL_TO_DISK:
+			spill(time, value);
+			break;
+		}
+	}
+
+	/**
+	 * @return the head of the slowest consumer, which is cached for the producer
+	 */
+	private long updateMinHead() {
+		long min = writeSequence;
+		for (Cursor cursor : cursors)
+			min = Math.min(min, cursor.head.get());
+		minHead = min;
+		return min;
+	}
+
+	private void write(long time, double value) {
+		int i = (int) writeSequence & mask;
+		times[i] = time;
+		values[i] = value;
+		writeSequence++;
+	}
+
+	/**
+	 * Makes the points added since the last publish visible to the consumers.
+	 */
+	void publish() {
+		if (tail.get() != writeSequence)
+			tail.lazySet(writeSequence);
+	}
+
+	/**
+	 * Moves up to maxPoints points into the consumer's arrays: the points held in
+	 * memory first, then any spilled points.
+	 * @param consumer the index of the consumer
+	 * @param offset the index in the arrays of the first point
+	 * @return the number of points drained
+	 */
+	int drain(int consumer, long[] times, double[] values, int offset, int maxPoints) {
+		Cursor cursor = cursors[consumer];
+		synchronized (cursor) {
+			// points spilled before the tail is read are never behind the points in memory
+			boolean spilled = spillWritten > cursor.spillRead;
+
+			int drained;
+			while (true) {
+				long h = cursor.head.get();
+				drained = (int) Math.min(Math.max(tail.get() - h, 0), maxPoints);
+
+				// copy up to the end of the ring, then from its start
+				int start = (int) h & mask;
+				int first = Math.min(drained, this.times.length - start);
+				System.arraycopy(this.times, start, times, offset, first);
+				System.arraycopy(this.values, start, values, offset, first);
+				System.arraycopy(this.times, 0, times, offset + first, drained - first);
+				System.arraycopy(this.values, 0, values, offset + first, drained - first);
+
+				// the producer dropped the oldest points while they were copied
+				if (cursor.head.compareAndSet(h, h + drained))
+					break;
+			}
+
+			if (spilled && drained < maxPoints)
+				drained += readSpilled(cursor, times, values, offset + drained, maxPoints - drained);
+
+			if (size() < capacity / 4)
+				aboveHighWatermark = false;
+			return drained;
+		}
+	}
+
+	/**
+	 * @return the number of published points in memory and spilled to disk
+	 *         which the slowest consumer has not drained
+	 */
+	int size() {
+		int size = 0;
+		for (Cursor cursor : cursors)
+			size = Math.max(size, size(cursor));
+		return size;
+	}
+
+	private int size(Cursor cursor) {
+		return (int) (Math.max(tail.get() - cursor.head.get(), 0) + Math.max(spillWritten - cursor.spillRead, 0));
+	}
+
+	/**
+	 * @return the number of points in memory and spilled to disk, including the
+	 *         points not yet published, only called by the producer
+	 */
+	int writtenSize() {
+		return (int) (writeSequence - updateMinHead() + spillCount);
+	}
+
+	boolean isAboveHighWatermark() {
+		return aboveHighWatermark;
+	}
+
+	/**
+	 * Removes every published point and deletes the spill file.
+	 */
+	void clear() {
+		for (Cursor cursor : cursors) {
+			long h;
+			do {
+				h = cursor.head.get();
+			} while (h < tail.get() && !cursor.head.compareAndSet(h, tail.get()));
+		}
+
+		synchronized (spillLock) {
+			closeSpillFile();
+		}
+		aboveHighWatermark = false;
+	}
+
+	private void spill(long time, double value) {
+		synchronized (spillLock) {
+			try {
+				if (spillChannel == null)
+					openSpillFile();
+
+				spillBlock.putLong(time);
+				spillBlock.putDouble(value);
+				if (!spillBlock.hasRemaining())
+					flushSpillBlock();
+
+				spillWritten++;
+				spillCount++;
+				spilledPoints.incrementAndGet();
+			} catch (IOException e) {
+				System.err.println("Failed to spill data to disk: " + e.getMessage());
+				spillBlock.clear();
+				droppedPoints.addAndGet(cursors.length);
+			}
+		}
+	}
+
+	private int readSpilled(Cursor cursor, long[] times, double[] values, int offset, int maxPoints) {
+		synchronized (spillLock) {
+			if (spillChannel == null)
+				return 0;
+
+			try {
+				// the block being written holds the newest spilled points
+				flushSpillBlock();
+
+				int numPoints = (int) Math.min(maxPoints, spillWritten - cursor.spillRead);
+				long position = cursor.spillRead * SPILL_RECORD_LENGTH;
+
+				// read a block at a time straight into the consumer's arrays
+				int i = offset;
+				int end = offset + numPoints;
+				while (i < end) {
+					spillReadBlock.clear();
+					spillReadBlock.limit(Math.min(end - i, SPILL_BLOCK_SIZE / SPILL_RECORD_LENGTH) * SPILL_RECORD_LENGTH);
+					while (spillReadBlock.hasRemaining()) {
+						if (spillChannel.read(spillReadBlock, position + spillReadBlock.position()) < 0)
+							throw new IOException("Spill file is truncated");
+					}
+					position += spillReadBlock.position();
+					spillReadBlock.flip();
+
+					for (; spillReadBlock.hasRemaining(); i++) {
+						times[i] = spillReadBlock.getLong();
+						values[i] = spillReadBlock.getDouble();
+					}
+				}
+				cursor.spillRead += numPoints;
+
+				// the file is deleted once every consumer has read it
+				long minRead = spillWritten;
+				for (Cursor c : cursors)
+					minRead = Math.min(minRead, c.spillRead);
+				spillCount = spillWritten - minRead;
+				if (spillCount == 0)
+					closeSpillFile();
+				return numPoints;
+			} catch (IOException e) {
+				System.err.println("Failed to read spilled data: " + e.getMessage());
+				droppedPoints.addAndGet(spillCount);
+				closeSpillFile();
+				return 0;
+			}
+		}
+	}
+
+	private void openSpillFile() throws IOException {
+		spillFile = File.createTempFile("log4-spill", ".bin");
+		spillFile.deleteOnExit();
+		spillChannel = new RandomAccessFile(spillFile, "rw").getChannel();
+		spillWritePosition = 0;
+	}
+
+	private void flushSpillBlock() throws IOException {
+		spillBlock.flip();
+		while (spillBlock.hasRemaining())
+			spillWritePosition += spillChannel.write(spillBlock, spillWritePosition);
+		spillBlock.clear();
+	}
+
+	private void closeSpillFile() {
+		if (spillChannel != null) {
+			try {
+				spillChannel.close();
+			} catch (IOException e) {
+				System.err.println("Failed to close the spill file");
+			}
+			spillFile.delete();
+		}
+		spillChannel = null;
+		spillFile = null;
+		spillBlock.clear();
+		spillWritten = 0;
+		spillCount = 0;
+		for (Cursor cursor : cursors)
+			cursor.spillRead = 0;
+	}
+}
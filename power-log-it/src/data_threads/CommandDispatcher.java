@@ -0,0 +1,346 @@
+package data_threads;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sends commands to the device and matches the device's responses to them.
+ *
+ * The device answers each command with a frame carrying the same command
+ * byte, or with a CMD_ERROR frame. Commands are answered in the order they
+ * were sent, so a response completes the oldest outstanding command with the
+ * same command byte and an error completes the oldest outstanding command.
+ * Every command which the device answers must be sent through the dispatcher,
+ * or its error would be blamed on another command.
+ *
+ * Each command returns a Future which completes with the response data. A
+ * command which is not answered in time, or is answered with ERR_BUSY,
+ * ERR_TIME_OUT or ERR_INVALID_CRC, fails unless it was submitted with retry,
+ * then it is sent again after a back-off delay. Only commands which can safely
+ * be repeated are retried, e.g. not SET_BAUD_RATE, which the device may
+ * already have acted on. Any number of commands can be outstanding while data
+ * is being streamed.
+ */
+class CommandDispatcher {
+	/** How long to wait for a response before the command is retried or fails (Milliseconds) */
+	private static final int RESPONSE_TIME_OUT = 500;
+
+	/** Delay before the first retry, doubled for each following retry (Milliseconds) */
+	private static final int RETRY_BACK_OFF = 50;
+
+	/** Number of times a command is sent before it fails */
+	private static final int MAX_ATTEMPTS = 4;
+
+	/** Device error codes after which the command is sent again */
+	private static final byte ERR_TIME_OUT = 0x03;
+	private static final byte ERR_BUSY = 0x05;
+	private static final byte ERR_INVALID_CRC = 0x06;
+
+	/** Used to write the commands to the serial port */
+	private final SerialCommsRunnable serialCommsRunner;
+
+	/** Runs the response time outs and the delayed retries */
+	private final ScheduledExecutorService ex;
+
+	/** The commands waiting for a response, oldest first */
+	private final ArrayDeque<PendingCommand> pendingCommands = new ArrayDeque<>();
+
+	CommandDispatcher(SerialCommsRunnable serialCommsRunner, ScheduledExecutorService ex) {
+		this.serialCommsRunner = serialCommsRunner;
+		this.ex = ex;
+	}
+
+	/**
+	 * Sends a command to the device.
+	 * @param cmd the command byte
+	 * @param data the command data, or null
+	 * @param retry true if the command can be sent again when it fails
+	 * @return completes with the data of the device's response
+	 */
+	Future<byte[]> submit(byte cmd, byte[] data, boolean retry) {
+		return submit(new PendingCommand(cmd, data, retry ? MAX_ATTEMPTS : 1, 1, RESPONSE_TIME_OUT));
+	}
+
+	/**
+	 * Sends a command which the device answers with several frames, e.g. a
+	 * chunk of the frame buffer. The command is not retried, the caller
+	 * decides which part to request again. Cancelling the command drops the
+	 * frames which arrive for it later.
+	 * @param responseFrames the number of frames the device answers with
+	 * @param timeout how long to wait for all of the frames (Milliseconds)
+	 * @return completes with the data of the last frame
+	 */
+	Future<byte[]> submitStreamed(byte cmd, byte[] data, int responseFrames, int timeout) {
+		return submit(new PendingCommand(cmd, data, 1, responseFrames, timeout));
+	}
+
+	private Future<byte[]> submit(PendingCommand command) {
+		synchronized (this) {
+			pendingCommands.add(command);
+		}
+		send(command);
+		return command.future;
+	}
+
+	/**
+	 * Called when a frame other than CMD_ERROR or SLAVE_DATA is received.
+	 * @return true if the frame was the response to an outstanding command
+	 */
+	boolean responseReceived(byte cmd, byte[] data, int length) {
+		PendingCommand command = null;
+		synchronized (this) {
+			for (Iterator<PendingCommand> it = pendingCommands.iterator(); it.hasNext();) {
+				PendingCommand pending = it.next();
+				// the caller has cancelled the command
+				if (pending.future.isDone()) {
+					it.remove();
+					continue;
+				}
+				if (pending.cmd == cmd) {
+					command = pending;
+					if (--command.remainingResponses == 0)
+						it.remove();
+					break;
+				}
+			}
+		}
+
+		if (command == null)
+			return false;
+		if (command.remainingResponses > 0)
+			return true;
+
+		byte[] response = new byte[length];
+		System.arraycopy(data, 0, response, 0, length);
+		command.future.complete(response, null);
+		return true;
+	}
+
+	/**
+	 * Called when a CMD_ERROR frame is received, the error belongs to the
+	 * oldest outstanding command.
+	 * @param errorCode the error code sent by the device
+	 */
+	void errorReceived(byte errorCode) {
+		PendingCommand command = null;
+		synchronized (this) {
+			// commands waiting to be sent again have already been answered
+			for (Iterator<PendingCommand> it = pendingCommands.iterator(); it.hasNext();) {
+				PendingCommand pending = it.next();
+				if (pending.future.isDone()) {
+					it.remove();
+				} else if (!pending.retrying) {
+					command = pending;
+					break;
+				}
+			}
+			if (command == null)
+				return;
+
+			pendingCommands.remove(command);
+			if (!isRetryable(errorCode) || command.attempts >= command.maxAttempts) {
+				command.future.complete(null, new DeviceErrorException(command.cmd, errorCode));
+				return;
+			}
+
+			// move the command to the back as it will be sent again
+			pendingCommands.add(command);
+		}
+		retry(command);
+	}
+
+	/**
+	 * Called by the time out task, sends the command again if it has still
+	 * not been answered.
+	 */
+	private void responseTimedOut(PendingCommand command, int attempt) {
+		synchronized (this) {
+			if (command.attempts != attempt || command.retrying || !pendingCommands.contains(command))
+				return;
+
+			// the caller cancelled the command
+			if (command.future.isDone()) {
+				pendingCommands.remove(command);
+				return;
+			}
+
+			if (command.attempts >= command.maxAttempts) {
+				pendingCommands.remove(command);
+				command.future.complete(null, new TimeoutException(String.format(
+						"No response to command 0x%02X after %d attempts", command.cmd, command.attempts)));
+				return;
+			}
+
+			// move the command to the back as it will be sent again
+			pendingCommands.remove(command);
+			pendingCommands.add(command);
+		}
+		retry(command);
+	}
+
+	/**
+	 * @return the number of commands waiting for a response
+	 */
+	synchronized int getPendingCount() {
+		return pendingCommands.size();
+	}
+
+	/**
+	 * Fails every outstanding command, used when the connection is closed.
+	 */
+	void cancelAll() {
+		PendingCommand[] commands;
+		synchronized (this) {
+			commands = pendingCommands.toArray(new PendingCommand[pendingCommands.size()]);
+			pendingCommands.clear();
+		}
+		for (PendingCommand command : commands)
+			command.future.cancel(false);
+	}
+
+	private void send(final PendingCommand command) {
+		final int attempt;
+		synchronized (this) {
+			command.retrying = false;
+			command.remainingResponses = command.responseFrames;
+			attempt = ++command.attempts;
+		}
+
+		serialCommsRunner.sendCommand(command.cmd, command.data);
+
+		ex.schedule(new Runnable() {
+			@Override
+			public void run() {
+				responseTimedOut(command, attempt);
+			}
+		}, command.timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sends the command again after the back-off delay.
+	 */
+	private void retry(final PendingCommand command) {
+		long delay;
+		synchronized (this) {
+			command.retrying = true;
+			delay = (long) RETRY_BACK_OFF << (command.attempts - 1);
+		}
+		ex.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (!command.future.isDone()) {
+					send(command);
+				} else {
+					synchronized (CommandDispatcher.this) {
+						pendingCommands.remove(command);
+					}
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private static boolean isRetryable(byte errorCode) {
+		return errorCode == ERR_BUSY || errorCode == ERR_TIME_OUT || errorCode == ERR_INVALID_CRC;
+	}
+
+	/** A command which has been sent and not yet answered */
+	private static class PendingCommand {
+		final byte cmd;
+		final byte[] data;
+		final CommandFuture future = new CommandFuture();
+
+		/** Number of times the command is sent before it fails, 1 if it is not retried */
+		final int maxAttempts;
+
+		/** Number of frames the device answers the command with */
+		final int responseFrames;
+
+		/** How long to wait for the response (Milliseconds) */
+		final int timeout;
+
+		/** Number of times the command has been sent */
+		int attempts;
+
+		/** Number of frames of the response still to be received */
+		int remainingResponses;
+
+		/** Set while waiting for the back-off delay before the command is sent again */
+		boolean retrying;
+
+		PendingCommand(byte cmd, byte[] data, int maxAttempts, int responseFrames, int timeout) {
+			this.cmd = cmd;
+			this.data = data;
+			this.maxAttempts = maxAttempts;
+			this.responseFrames = responseFrames;
+			this.timeout = timeout;
+		}
+	}
+
+	/** Completes with the data of the response to a command */
+	private static class CommandFuture implements Future<byte[]> {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile byte[] response;
+		private volatile Throwable failure;
+		private volatile boolean cancelled;
+
+		/**
+		 * @return true if this call completed the future
+		 */
+		synchronized boolean complete(byte[] response, Throwable failure) {
+			if (done.getCount() == 0)
+				return false;
+			this.response = response;
+			this.failure = failure;
+			done.countDown();
+			return true;
+		}
+
+		@Override
+		public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+			if (done.getCount() == 0)
+				return false;
+			cancelled = true;
+			done.countDown();
+			return true;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		@Override
+		public byte[] get() throws InterruptedException, ExecutionException {
+			done.await();
+			return result();
+		}
+
+		@Override
+		public byte[] get(long timeout, TimeUnit unit) throws InterruptedException,
+				ExecutionException, TimeoutException {
+			if (!done.await(timeout, unit))
+				throw new TimeoutException();
+			return result();
+		}
+
+		private byte[] result() throws ExecutionException {
+			if (cancelled)
+				throw new CancellationException();
+			if (failure != null)
+				throw new ExecutionException(failure);
+			return response;
+		}
+	}
+}
@@ -2,9 +2,11 @@ package data_threads;
 
 import java.awt.event.ActionListener;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.swing.JButton;
 import javax.swing.JComboBox;
@@ -15,16 +17,27 @@ import javax.swing.MenuElement;
 
 import model.ElectricalDataTypes;
 import model.ObservableModelDetails;
-import model.TimeDataPoint;
 
 public abstract class DataRunnable implements Runnable, ActionListener, Observer {
+	/** Default number of points each channel buffer holds in memory */
+	private static final int DEFAULT_BUFFER_CAPACITY = 100000;
+	
+	/** The data model of each type drains its buffers as consumer 0 */
+	private static final int MODEL_CONSUMER = 0;
+	
 	/** Lists of thread safe buffers for storing channel data */
-	ArrayList<LinkedBlockingQueue<TimeDataPoint>> voltageBuffers;
-	ArrayList<LinkedBlockingQueue<TimeDataPoint>> currentBuffers;
-	ArrayList<LinkedBlockingQueue<TimeDataPoint>> powerBuffers;
-	ArrayList<LinkedBlockingQueue<TimeDataPoint>> resistanceBuffers;
-	ArrayList<LinkedBlockingQueue<TimeDataPoint>> powerBuffersCopy;
-	ArrayList<LinkedBlockingQueue<TimeDataPoint>> temperatureBuffers;
+	ArrayList<ChannelBuffer> voltageBuffers;
+	ArrayList<ChannelBuffer> currentBuffers;
+	ArrayList<ChannelBuffer> powerBuffers;
+	ArrayList<ChannelBuffer> resistanceBuffers;
+	ArrayList<ChannelBuffer> energyBuffers;
+	ArrayList<ChannelBuffer> temperatureBuffers;
+	
+	/** Computes the power, resistance and energy of the staged voltage and current samples */
+	private volatile DerivedChannelStage derivedStage = new DerivedChannelStage(0);
+	
+	/** The number of consumers of the buffers of each data type, every consumer drains every point */
+	private final Map<ElectricalDataTypes, Integer> numConsumers = new EnumMap<>(ElectricalDataTypes.class);
 	
 	/** Device model number (null when no device is connected) */
 	ObservableModelDetails obModelDetails;
@@ -34,22 +47,20 @@ public abstract class DataRunnable implements Runnable, ActionListener, Observer
 	
     /** Indicates whether data is being captured by thread */
     boolean captureData;
+    
+    /** The size and overflow policy of the channel buffers, applied when the buffers are next created */
+    private volatile int bufferCapacity = Integer.getInteger("log4.buffer.capacity", DEFAULT_BUFFER_CAPACITY);
+    private volatile OverflowPolicy overflowPolicy =
+    		OverflowPolicy.valueOf(System.getProperty("log4.buffer.policy", OverflowPolicy.DROP_OLDEST.name()));
+    
+    /** The number of points which did not fit into the channel buffers */
+    final AtomicLong droppedPoints = new AtomicLong();
+    final AtomicLong spilledPoints = new AtomicLong();
 	
 	public DataRunnable(ObservableModelDetails obModelDetails, JMenuBar menuBar) {
+		this(obModelDetails);
 		
-		// initialise the lists of channel data buffers
-    	voltageBuffers = new ArrayList<>();
-    	currentBuffers = new ArrayList<>();
-    	powerBuffers = new ArrayList<>();
-    	resistanceBuffers = new ArrayList<>();
-    	powerBuffersCopy = new ArrayList<>();
-    	temperatureBuffers = new ArrayList<>();
-    	
-    	// set the observable model details
-    	this.obModelDetails = obModelDetails;
-    	obModelDetails.addObserver(this);
-    	
-    	// Get the sampling rate menu options and add this class as a listener
+		// Get the sampling rate menu options and add this class as a listener
 		JMenu toolsMenu = menuBar.getMenu(1);
 		JMenu samplingMenu = (JMenu) toolsMenu.getSubElements()[0].getSubElements()[2];
 		
@@ -65,6 +76,31 @@ public abstract class DataRunnable implements Runnable, ActionListener, Observer
 			// register the serial thread as a listener for sampling events 
 			currItem.addActionListener(this);
 		} 
+	}
+	
+	/**
+	 * Constructor used when there is no menu bar, e.g. for a device which is
+	 * not shown in the GUI. The default sampling period is used.
+	 */
+	public DataRunnable(ObservableModelDetails obModelDetails) {
+		
+		// initialise the lists of channel data buffers
+    	voltageBuffers = new ArrayList<>();
+    	currentBuffers = new ArrayList<>();
+    	powerBuffers = new ArrayList<>();
+    	resistanceBuffers = new ArrayList<>();
+    	energyBuffers = new ArrayList<>();
+    	temperatureBuffers = new ArrayList<>();
+    	
+    	for(ElectricalDataTypes elecDataType : ElectricalDataTypes.values())
+    		numConsumers.put(elecDataType, 1);
+    	
+    	// set the observable model details
+    	this.obModelDetails = obModelDetails;
+    	obModelDetails.addObserver(this);
+    	
+    	// no sampling rate menu options until they are registered
+    	samplingButtons = new JRadioButtonMenuItem[0];
 		
 		// Initially threads should be capturing data
     	captureData = true;
@@ -81,11 +117,11 @@ public abstract class DataRunnable implements Runnable, ActionListener, Observer
 		
     	for(String channelFormat : channelFormats) {
     		if(channelFormat.equals("V"))
-    			voltageBuffers.add(new LinkedBlockingQueue<TimeDataPoint>());
+    			voltageBuffers.add(newChannelBuffer(ElectricalDataTypes.VOLTAGE));
     		else if (channelFormat.equals("I"))
-    			currentBuffers.add(new LinkedBlockingQueue<TimeDataPoint>());
+    			currentBuffers.add(newChannelBuffer(ElectricalDataTypes.CURRENT));
     		else if (channelFormat.equals("T"))
-    			temperatureBuffers.add(new LinkedBlockingQueue<TimeDataPoint>());
+    			temperatureBuffers.add(newChannelBuffer(ElectricalDataTypes.TEMPERATURE));
     	}
     	
     	if(voltageBuffers.size() != currentBuffers.size()) {
@@ -95,10 +131,11 @@ public abstract class DataRunnable implements Runnable, ActionListener, Observer
     	
     	// Add the buffers associated with the current and voltage channels
     	for(int i=0; i<voltageBuffers.size(); i++) {
-    		powerBuffers.add(new LinkedBlockingQueue<TimeDataPoint>());
-    		resistanceBuffers.add(new LinkedBlockingQueue<TimeDataPoint>());
-    		powerBuffersCopy.add(new LinkedBlockingQueue<TimeDataPoint>());
+    		powerBuffers.add(newChannelBuffer(ElectricalDataTypes.POWER));
+    		resistanceBuffers.add(newChannelBuffer(ElectricalDataTypes.RESISTANCE));
+    		energyBuffers.add(newChannelBuffer(ElectricalDataTypes.ENERGY));
     	}
+    	derivedStage = new DerivedChannelStage(voltageBuffers.size(), derivesMagnitudes());
     	
     	//TODO Debugging
     	//System.out.println("Num voltage buffers: " + voltageBuffers.size());
@@ -106,56 +143,182 @@ public abstract class DataRunnable implements Runnable, ActionListener, Observer
     	//System.out.println();
 	}
 	
+    private synchronized ChannelBuffer newChannelBuffer(ElectricalDataTypes elecDataType) {
+    	return new ChannelBuffer(bufferCapacity, overflowPolicy, numConsumers.get(elecDataType),
+    			droppedPoints, spilledPoints);
+    }
+    
+    /**
+     * Adds a consumer of a data type, e.g. a recorder or an exporter. The
+     * consumer drains every point published from now on through its own
+     * cursor, without the points being copied for it.
+     * @param elecDataType the data type
+     * @return the consumer to pass to drainDataBuffer
+     */
+    public synchronized int addConsumer(ElectricalDataTypes elecDataType) {
+    	int consumer = numConsumers.get(elecDataType);
+    	numConsumers.put(elecDataType, consumer + 1);
+    	
+    	// the buffers for the next device model are created with the consumer,
+    	// the current buffers get a cursor at their tail
+    	for(ChannelBuffer channelDataPoints : getBuffers(elecDataType))
+    		channelDataPoints.addConsumer();
+    	return consumer;
+    }
+    
+    private ArrayList<ChannelBuffer> getBuffers(ElectricalDataTypes elecDataType) {
+    	switch (elecDataType) {
+    	case VOLTAGE:
+    		return voltageBuffers;
+    	case CURRENT:
+    		return currentBuffers;
+    	case POWER:
+    		return powerBuffers;
+    	case RESISTANCE:
+    		return resistanceBuffers;
+    	case ENERGY:
+    		return energyBuffers;
+    	case TEMPERATURE:
+    		return temperatureBuffers;
+    	default:
+    		throw new IllegalArgumentException("No buffers for " + elecDataType);
+    	}
+    }
+    
     private synchronized void removeAllBuffers() {
+    	// delete any spill files
+    	clearData();
+    	
     	voltageBuffers.clear();
         currentBuffers.clear();
         powerBuffers.clear();
     	resistanceBuffers.clear();
-    	powerBuffersCopy.clear();
+    	energyBuffers.clear();
         temperatureBuffers.clear();
+        derivedStage = new DerivedChannelStage(0);
     }
     
     /**
-     * Drains and returns the points in the specified data buffer in ArrayList form.
-     * @param elecDataType specifies the data buffer to be drained.
-     * @return the drained data buffer
+     * Stages the voltage and current of a channel's sample, the sample and the
+     * quantities derived from it are added to the channel buffers in batches.
+     * Called by the thread acquiring the data.
+     * @param channel the channel of the voltage and current
+     * @param time the time of the sample (Epoch milliseconds)
      */
-    public ArrayList<ArrayList<TimeDataPoint>> drainDataBuffers(ElectricalDataTypes elecDataType) {
-    	ArrayList<ArrayList<TimeDataPoint>> dataBufferCopies = new ArrayList<ArrayList<TimeDataPoint>>();
+    void addVoltageAndCurrent(int channel, long time, double voltage, double current) {
+    	if (derivedStage.stage(channel, time, voltage, current))
+    		addDerivedBatch(channel);
+    }
+    
+    /**
+     * Computes the quantities derived from the samples staged for a channel
+     * and adds the batch to the channel buffers.
+     */
+    private void addDerivedBatch(int channel) {
+    	DerivedChannelStage stage = derivedStage;
+    	int count = stage.compute(channel);
+    	addBatch(voltageBuffers.get(channel), stage.getTimes(channel), stage.getVoltages(channel), count);
+    	addBatch(currentBuffers.get(channel), stage.getTimes(channel), stage.getCurrents(channel), count);
+    	addBatch(powerBuffers.get(channel), stage.getTimes(channel), stage.getPowers(channel), count);
+    	addBatch(resistanceBuffers.get(channel), stage.getTimes(channel), stage.getResistances(channel), count);
+    	addBatch(energyBuffers.get(channel), stage.getTimes(channel), stage.getEnergies(channel), count);
+    }
+    
+    private static void addBatch(ChannelBuffer channelDataPoints, long[] times, double[] values, int count) {
+    	for(int i=0; i<count; i++)
+    		channelDataPoints.add(times[i], values[i]);
+    }
+    
+    /**
+     * Makes the points added to the channel buffers visible to the data models,
+     * called by the thread acquiring the data after a batch of points.
+     */
+    void publishBuffers() {
+    	// finish the batches of derived quantities first
+    	for(int i=0; i<derivedStage.getNumChannels(); i++)
+    		addDerivedBatch(i);
     	
-    	if (elecDataType == ElectricalDataTypes.VOLTAGE)
-    		for(LinkedBlockingQueue<TimeDataPoint> voltageBuffer : voltageBuffers) {
-    			dataBufferCopies.add(new ArrayList<TimeDataPoint>());
-    			voltageBuffer.drainTo(dataBufferCopies.get(dataBufferCopies.size()-1));
-    		}
-    	else if (elecDataType == ElectricalDataTypes.CURRENT)
-    		for(LinkedBlockingQueue<TimeDataPoint> currentBuffer : currentBuffers) {
-    			dataBufferCopies.add(new ArrayList<TimeDataPoint>());
-    			currentBuffer.drainTo(dataBufferCopies.get(dataBufferCopies.size()-1));
-    		}
-    	else if(elecDataType == ElectricalDataTypes.POWER)
-    		for(LinkedBlockingQueue<TimeDataPoint> powerBuffer : powerBuffers) {
-    			dataBufferCopies.add(new ArrayList<TimeDataPoint>());
-    			powerBuffer.drainTo(dataBufferCopies.get(dataBufferCopies.size()-1));
-    		}
-    	else if(elecDataType == ElectricalDataTypes.RESISTANCE)
-    		for(LinkedBlockingQueue<TimeDataPoint> resistanceBuffer : resistanceBuffers) {
-    			dataBufferCopies.add(new ArrayList<TimeDataPoint>());
-    			resistanceBuffer.drainTo(dataBufferCopies.get(dataBufferCopies.size()-1));
-    		}
-    	else if(elecDataType == ElectricalDataTypes.ENERGY)
-    		for(LinkedBlockingQueue<TimeDataPoint> powerBufferCopy : powerBuffersCopy) {
-    			dataBufferCopies.add(new ArrayList<TimeDataPoint>());
-    			powerBufferCopy.drainTo(dataBufferCopies.get(dataBufferCopies.size()-1));
-    		}
-    	else if(elecDataType == ElectricalDataTypes.TEMPERATURE)
-    		for(LinkedBlockingQueue<TimeDataPoint> temperatureBuffer : temperatureBuffers) {
-    			dataBufferCopies.add(new ArrayList<TimeDataPoint>());
-    			temperatureBuffer.drainTo(dataBufferCopies.get(dataBufferCopies.size()-1));
-    		}
-    		
+    	publishBuffers(voltageBuffers);
+    	publishBuffers(currentBuffers);
+    	publishBuffers(powerBuffers);
+    	publishBuffers(resistanceBuffers);
+    	publishBuffers(energyBuffers);
+    	publishBuffers(temperatureBuffers);
+    }
+    
+    private void publishBuffers(ArrayList<ChannelBuffer> buffer) {
+    	for(ChannelBuffer channelDataPoints : buffer)
+    		channelDataPoints.publish();
+    }
+    
+    /**
+     * Adds a NaN point to every channel buffer, so the data models break
+     * their series at a gap in the data instead of joining the points either
+     * side of it. Called by the thread acquiring the data.
+     * @param time the time of the gap, after every point added so far (Epoch milliseconds)
+     */
+    void addGap(long time) {
+    	publishBuffers();
+    	derivedStage.gap();
     	
-    	return dataBufferCopies;
+    	addGap(voltageBuffers, time);
+    	addGap(currentBuffers, time);
+    	addGap(powerBuffers, time);
+    	addGap(resistanceBuffers, time);
+    	addGap(energyBuffers, time);
+    	addGap(temperatureBuffers, time);
+    }
+    
+    private void addGap(ArrayList<ChannelBuffer> buffer, long time) {
+    	for(ChannelBuffer channelDataPoints : buffer)
+    		channelDataPoints.offer(time, Double.NaN);
+    }
+    
+    /**
+     * @param elecDataType the data type
+     * @return the number of channels buffered for the data type
+     */
+    public synchronized int getNumChannels(ElectricalDataTypes elecDataType) {
+    	return getBuffers(elecDataType).size();
+    }
+    
+    /**
+     * Drains the points of a channel into the arrays, without allocating. The
+     * arrays are owned by the caller and reused, call again while the arrays
+     * are filled to drain the rest of the channel.
+     * @param elecDataType specifies the data buffer to be drained.
+     * @param channel the channel of the data type
+     * @param times the array the times of the points are written to
+     * @param values the array the values of the points are written to
+     * @return the number of points drained, 0 if there is no such channel
+     */
+    public int drainDataBuffer(ElectricalDataTypes elecDataType, int channel, long[] times, double[] values) {
+    	return drainDataBuffer(elecDataType, MODEL_CONSUMER, channel, times, values);
+    }
+    
+    /**
+     * Drains the points of a channel which a consumer has not yet drained into the arrays.
+     * @param elecDataType specifies the data buffer to be drained.
+     * @param consumer 0 for the data model of the data type, or a consumer from addConsumer
+     * @param channel the channel of the data type
+     * @param times the array the times of the points are written to
+     * @param values the array the values of the points are written to
+     * @return the number of points drained, 0 if there is no such channel
+     */
+    public int drainDataBuffer(ElectricalDataTypes elecDataType, int consumer, int channel,
+    		long[] times, double[] values) {
+    	ChannelBuffer channelDataPoints;
+    	synchronized (this) {
+    		ArrayList<ChannelBuffer> buffers = getBuffers(elecDataType);
+    		if (channel >= buffers.size())
+    			return 0;
+    		channelDataPoints = buffers.get(channel);
+    	}
+    	return channelDataPoints.drain(consumer, times, values, 0, Math.min(times.length, values.length));
+    }
+    
+    public ObservableModelDetails getModelDetails() {
+    	return obModelDetails;
     }
     
     public int getSamplingPeriod() {
@@ -164,21 +327,9 @@ public abstract class DataRunnable implements Runnable, ActionListener, Observer
     
     	for(JRadioButtonMenuItem samplingButton : samplingButtons) {
     		if(samplingButton.isSelected()) {
-    			String [] samplingButtonSelection = samplingButton.getText().split(" ");	
-    				if(samplingButtonSelection[1].equals("ms")){
-    				// sampling period specified in ms
-    				samplingPeriod=Integer.parseInt(samplingButtonSelection[0]);
-    			} else if (samplingButtonSelection[1].equals("sec")) {
-    				// sampling period specifies in seconds
-    				samplingPeriod=Integer.parseInt(samplingButtonSelection[0])*1000;
-    			} else if (samplingButtonSelection[1].equals("min")) {
-    				// sampling period specifies in minutes
-    				samplingPeriod=Integer.parseInt(samplingButtonSelection[0])*1000*60;
-    			} else if (samplingButtonSelection[1].equals("hr")) {
-    				// sampling period specifies in hours
-    				samplingPeriod=Integer.parseInt(samplingButtonSelection[0])*1000*60*60;
-    			}
-    			
+    			int buttonPeriod = getSamplingPeriod(samplingButton);
+    			if(buttonPeriod > 0)
+    				samplingPeriod = buttonPeriod;
     			break;
     		}
     	}
@@ -186,6 +337,41 @@ public abstract class DataRunnable implements Runnable, ActionListener, Observer
     	return samplingPeriod;
     }
     
+    /**
+     * @return the sampling period of a sampling rate menu option (Milliseconds),
+     *         -1 if the option has no fixed period, e.g. Custom
+     */
+    private static int getSamplingPeriod(JRadioButtonMenuItem samplingButton) {
+    	String [] samplingButtonSelection = samplingButton.getText().split(" ");
+    	if(samplingButtonSelection.length < 2)
+    		return -1;
+    	
+    	if(samplingButtonSelection[1].equals("ms")){
+    		// sampling period specified in ms
+    		return Integer.parseInt(samplingButtonSelection[0]);
+    	} else if (samplingButtonSelection[1].equals("sec")) {
+    		// sampling period specifies in seconds
+    		return Integer.parseInt(samplingButtonSelection[0])*1000;
+    	} else if (samplingButtonSelection[1].equals("min")) {
+    		// sampling period specifies in minutes
+    		return Integer.parseInt(samplingButtonSelection[0])*1000*60;
+    	} else if (samplingButtonSelection[1].equals("hr")) {
+    		// sampling period specifies in hours
+    		return Integer.parseInt(samplingButtonSelection[0])*1000*60*60;
+    	}
+    	return -1;
+    }
+    
+    /**
+     * Selects the sampling rate menu option with the sampling period, without
+     * firing its action. Must be called on the event dispatch thread.
+     * @param samplingPeriod the sampling period (Milliseconds)
+     */
+    void selectSamplingPeriod(int samplingPeriod) {
+    	for(JRadioButtonMenuItem samplingButton : samplingButtons)
+    		samplingButton.setSelected(getSamplingPeriod(samplingButton) == samplingPeriod);
+    }
+    
     /***
      * Used to clear data in the buffers when:
      * 		-User clicks the clear data button
@@ -194,17 +380,86 @@ public abstract class DataRunnable implements Runnable, ActionListener, Observer
     	clearDataInBuffer(voltageBuffers);
     	clearDataInBuffer(currentBuffers);
     	clearDataInBuffer(powerBuffers);
-    	clearDataInBuffer(powerBuffersCopy);
     	clearDataInBuffer(resistanceBuffers);
+    	clearDataInBuffer(energyBuffers);
     	clearDataInBuffer(temperatureBuffers);
+    	
+    	// the energy is accumulated from the cleared data onwards
+    	derivedStage.resetEnergy();
     }
     
-    private void clearDataInBuffer(ArrayList<LinkedBlockingQueue<TimeDataPoint>> buffer) {
-    	for(LinkedBlockingQueue<TimeDataPoint> channelDataPoints : buffer) {
+    private void clearDataInBuffer(ArrayList<ChannelBuffer> buffer) {
+    	for(ChannelBuffer channelDataPoints : buffer) {
     		channelDataPoints.clear();
     	}
     }
     
+    /**
+     * @return the number of data points waiting in the channel buffers to be drained
+     */
+    public int getQueueDepth() {
+    	return getQueueDepth(voltageBuffers) + getQueueDepth(currentBuffers)
+    			+ getQueueDepth(powerBuffers) + getQueueDepth(resistanceBuffers)
+    			+ getQueueDepth(energyBuffers) + getQueueDepth(temperatureBuffers);
+    }
+    
+    private int getQueueDepth(ArrayList<ChannelBuffer> buffer) {
+    	int depth = 0;
+    	for(ChannelBuffer channelDataPoints : buffer)
+    		depth += channelDataPoints.size();
+    	return depth;
+    }
+    
+    /**
+     * @return true if any channel buffer is nearly full and has not yet been drained
+     */
+    boolean isAboveHighWatermark() {
+    	return isAboveHighWatermark(voltageBuffers) || isAboveHighWatermark(currentBuffers)
+    			|| isAboveHighWatermark(powerBuffers) || isAboveHighWatermark(resistanceBuffers)
+    			|| isAboveHighWatermark(energyBuffers) || isAboveHighWatermark(temperatureBuffers);
+    }
+    
+    private boolean isAboveHighWatermark(ArrayList<ChannelBuffer> buffer) {
+    	for(ChannelBuffer channelDataPoints : buffer)
+    		if (channelDataPoints.isAboveHighWatermark())
+    			return true;
+    	return false;
+    }
+    
+    /**
+     * Sets the size of the channel buffers and what happens to the points which
+     * do not fit. Used for the buffers created for the next device model.
+     * @param capacity the number of points each channel buffer holds in memory
+     */
+    public void setBufferLimits(int capacity, OverflowPolicy overflowPolicy) {
+    	if (capacity <= 0)
+    		throw new IllegalArgumentException("Buffer capacity must be positive");
+    	this.bufferCapacity = capacity;
+    	this.overflowPolicy = overflowPolicy;
+    }
+    
+    /**
+     * @return the number of points dropped because a channel buffer was full
+     */
+    public long getDroppedPoints() {
+    	return droppedPoints.get();
+    }
+    
+    /**
+     * @return the number of points spilled to disk because a channel buffer was full
+     */
+    public long getSpilledPoints() {
+    	return spilledPoints.get();
+    }
+    
+    /**
+     * @return true if the power and resistance derived from the voltage and
+     *         current are magnitudes, false to keep their signs
+     */
+    boolean derivesMagnitudes() {
+    	return true;
+    }
+    
     /* Abstract Methods */
     
     public abstract boolean isRunning();
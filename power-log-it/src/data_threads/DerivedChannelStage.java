@@ -0,0 +1,198 @@
+package data_threads;
+
+/**
+ * Computes the quantities derived from the voltage and current of each
+ * channel: the power, the resistance and the energy since the data was last
+ * cleared.
+ *
+ * The thread acquiring the data stages the voltage and current of each sample,
+ * and the derived columns are computed for a batch of samples at a time, in
+ * loops over primitive arrays, before the batch is added to the channel
+ * buffers. The data models only drain the finished columns, so nothing is
+ * computed on the Swing thread however fast the device samples.
+ *
+ * The power and resistance of a device are magnitudes, and a sample without
+ * current has no resistance. The simulated source keeps their signs instead.
+ *
+ * The energy is the power integrated over the time since the previous sample
+ * of the channel (Joules), the first sample after the data is cleared has no
+ * energy.
+ *
+ * The stage is NOT thread safe, except for resetEnergy it must only be used by
+ * the thread that acquires the data.
+ */
+class DerivedChannelStage {
+	/** The number of samples of a channel computed together */
+	static final int BATCH_SIZE = 256;
+
+	/** The staged samples and the derived columns of each channel */
+	private final long[][] times;
+	private final double[][] voltages;
+	private final double[][] currents;
+	private final double[][] powers;
+	private final double[][] resistances;
+	private final double[][] energies;
+
+	/** The number of samples staged for each channel */
+	private final int[] counts;
+
+	/** The energy of each channel at its last computed sample (Joules) */
+	private final double[] energy;
+
+	/** The time of the last computed sample of each channel, Long.MIN_VALUE if there is none */
+	private final long[] lastTime;
+
+	/** Set when the data is cleared, the energy is reset before the next batch */
+	private volatile boolean energyReset;
+
+	/** True if the power and resistance are magnitudes */
+	private final boolean magnitudes;
+
+	/**
+	 * @param numChannels the number of voltage and current channel pairs
+	 */
+	DerivedChannelStage(int numChannels) {
+		this(numChannels, true);
+	}
+
+	/**
+	 * @param numChannels the number of voltage and current channel pairs
+	 * @param magnitudes true to derive the magnitude of the power and resistance,
+	 *        false to keep their signs
+	 */
+	DerivedChannelStage(int numChannels, boolean magnitudes) {
+		this.magnitudes = magnitudes;
+		times = new long[numChannels][BATCH_SIZE];
+		voltages = new double[numChannels][BATCH_SIZE];
+		currents = new double[numChannels][BATCH_SIZE];
+		powers = new double[numChannels][BATCH_SIZE];
+		resistances = new double[numChannels][BATCH_SIZE];
+		energies = new double[numChannels][BATCH_SIZE];
+		counts = new int[numChannels];
+		energy = new double[numChannels];
+		lastTime = new long[numChannels];
+		clearEnergy();
+	}
+
+	/**
+	 * @return the number of voltage and current channel pairs
+	 */
+	int getNumChannels() {
+		return counts.length;
+	}
+
+	/**
+	 * Stages a sample of a channel.
+	 * @param time the time of the sample (Epoch milliseconds)
+	 * @param voltage the voltage of the sample (V)
+	 * @param current the current of the sample (A)
+	 * @return true if the channel's batch is full and must be computed
+	 */
+	boolean stage(int channel, long time, double voltage, double current) {
+		int count = counts[channel];
+		times[channel][count] = time;
+		voltages[channel][count] = voltage;
+		currents[channel][count] = current;
+		counts[channel] = ++count;
+		return count == BATCH_SIZE;
+	}
+
+	/**
+	 * Computes the derived columns of the samples staged for a channel, which
+	 * are read with the getters until the channel is next staged.
+	 * @return the number of samples computed
+	 */
+	int compute(int channel) {
+		if (energyReset) {
+			energyReset = false;
+			clearEnergy();
+		}
+
+		int count = counts[channel];
+		counts[channel] = 0;
+
+		long[] t = times[channel];
+		double[] v = voltages[channel];
+		double[] i = currents[channel];
+		double[] p = powers[channel];
+		double[] r = resistances[channel];
+		double[] e = energies[channel];
+
+		if (magnitudes) {
+			for (int k = 0; k < count; k++)
+				p[k] = Math.abs(v[k] * i[k]);
+
+			// no resistance is known without a current
+			for (int k = 0; k < count; k++)
+				r[k] = i[k] != 0 ? Math.abs(v[k] / i[k]) : 0;
+		} else {
+			for (int k = 0; k < count; k++)
+				p[k] = v[k] * i[k];
+			for (int k = 0; k < count; k++)
+				r[k] = v[k] / i[k];
+		}
+
+		// the energy is a running sum, the loop carries it in locals
+		double sum = energy[channel];
+		long last = lastTime[channel];
+		for (int k = 0; k < count; k++) {
+			if (last != Long.MIN_VALUE)
+				sum += (t[k] - last) / 1e3 * p[k];
+			e[k] = sum;
+			last = t[k];
+		}
+		energy[channel] = sum;
+		lastTime[channel] = last;
+
+		return count;
+	}
+
+	long[] getTimes(int channel) {
+		return times[channel];
+	}
+
+	double[] getVoltages(int channel) {
+		return voltages[channel];
+	}
+
+	double[] getCurrents(int channel) {
+		return currents[channel];
+	}
+
+	double[] getPowers(int channel) {
+		return powers[channel];
+	}
+
+	double[] getResistances(int channel) {
+		return resistances[channel];
+	}
+
+	double[] getEnergies(int channel) {
+		return energies[channel];
+	}
+
+	/**
+	 * Starts the energy of every channel from 0 again, e.g. when the data is
+	 * cleared. May be called from any thread, the energy is reset before the
+	 * next batch is computed.
+	 */
+	void resetEnergy() {
+		energyReset = true;
+	}
+
+	/**
+	 * Stops the energy of every channel being integrated over a gap in the
+	 * data, the energy is kept and the next sample adds none.
+	 */
+	void gap() {
+		for (int channel = 0; channel < lastTime.length; channel++)
+			lastTime[channel] = Long.MIN_VALUE;
+	}
+
+	private void clearEnergy() {
+		for (int channel = 0; channel < energy.length; channel++) {
+			energy[channel] = 0;
+			lastTime[channel] = Long.MIN_VALUE;
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package data_threads;
+
+/**
+ * Thrown (as the cause of an ExecutionException) when the device answers a
+ * command with a CMD_ERROR frame.
+ */
+@SuppressWarnings("serial")
+public class DeviceErrorException extends Exception {
+	/** The error code sent by the device */
+	private final byte errorCode;
+
+	public DeviceErrorException(byte command, byte errorCode) {
+		super(String.format("Command 0x%02X failed with device error 0x%02X", command, errorCode));
+		this.errorCode = errorCode;
+	}
+
+	public byte getErrorCode() {
+		return errorCode;
+	}
+}
@@ -0,0 +1,148 @@
+package data_threads;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+
+import model.ObservableModelDetails;
+
+/**
+ * Runs one acquisition pipeline per attached Log4 device.
+ *
+ * Each pipeline is a SerialCommsRunnable with its own model details, buffers,
+ * locks, reader thread and timer thread, so the devices are read in parallel
+ * and never wait on each other. Every pipeline searches for a device on the
+ * ports which are not already open, so each one connects to a different device.
+ *
+ * Nothing drains a pipeline's buffers until a consumer is added with
+ * addConsumer and drained with drainDataBuffer, so the pipelines do not ask
+ * their devices to sample more slowly when the buffers fill up, the oldest
+ * points are dropped instead. A pipeline may instead record the raw serial
+ * data of its device to a file, which is replayed with CaptureReplay, its
+ * samples are then not decoded into the buffers at all.
+ */
+public class DeviceManager {
+	/** The pipelines, in the order they were added */
+	private final List<SerialCommsRunnable> pipelines = new ArrayList<>();
+
+	/** Creates the transports the pipelines connect through */
+	private final SerialTransportFactory transportFactory;
+
+	/**
+	 * Creates a device manager which connects to devices on the serial ports.
+	 */
+	public DeviceManager() {
+		this(JsscTransport.FACTORY);
+	}
+
+	/**
+	 * @param transportFactory creates the transports the devices are connected through,
+	 *        e.g. loopback devices for load-testing
+	 */
+	public DeviceManager(SerialTransportFactory transportFactory) {
+		this.transportFactory = transportFactory;
+	}
+
+	/**
+	 * Starts a pipeline for each of the devices.
+	 * @param numDevices the number of devices to connect to
+	 */
+	public synchronized void start(int numDevices) {
+		for (int i = 0; i < numDevices; i++)
+			addDevice();
+	}
+
+	/**
+	 * Starts a new pipeline, which connects to the first device not already in use.
+	 * @return the new pipeline
+	 */
+	public synchronized SerialCommsRunnable addDevice() {
+		return startPipeline(new SerialCommsRunnable(new ObservableModelDetails()));
+	}
+
+	/**
+	 * Starts a new pipeline, which records the raw serial data of its device
+	 * to a file once the device is found. Nothing drains the pipeline, so the
+	 * samples are only recorded and decoded when the file is replayed.
+	 * @param captureFile the capture file, replaced if it exists
+	 * @return the new pipeline
+	 */
+	public synchronized SerialCommsRunnable addDevice(final File captureFile) {
+		final ObservableModelDetails obModelDetails = new ObservableModelDetails();
+		final SerialCommsRunnable pipeline = new SerialCommsRunnable(obModelDetails);
+		pipeline.setDecodeSamples(false);
+
+		// the capture is started once the device is found, and started again if
+		// the model or firmware version changes, as both are recorded in the file
+		obModelDetails.addObserver(new Observer() {
+			private int model;
+			private int firmwareVersion;
+
+			@Override
+			public void update(Observable o, Object arg) {
+				Integer newModel = obModelDetails.getModelNumber();
+				if (newModel == null || newModel == 0)
+					return;
+				if (pipeline.isRawCapturing() && newModel == model
+						&& obModelDetails.getFirmwareVersion() == firmwareVersion)
+					return;
+
+				model = newModel;
+				firmwareVersion = obModelDetails.getFirmwareVersion();
+				try {
+					pipeline.startRawCapture(captureFile);
+				} catch (IOException e) {
+					System.err.println("Unable to create " + captureFile + ": " + e.getMessage());
+				}
+			}
+		});
+		return startPipeline(pipeline);
+	}
+
+	private SerialCommsRunnable startPipeline(SerialCommsRunnable pipeline) {
+		pipeline.setTransportFactory(transportFactory);
+		pipeline.setRateBackoff(false);
+		pipelines.add(pipeline);
+		pipeline.startConnectionThread();
+		return pipeline;
+	}
+
+	/**
+	 * Closes the connection to the device and stops its pipeline.
+	 */
+	public synchronized void removeDevice(SerialCommsRunnable pipeline) {
+		if (pipelines.remove(pipeline))
+			pipeline.dispose();
+	}
+
+	/**
+	 * @return a copy of the list of pipelines
+	 */
+	public synchronized List<SerialCommsRunnable> getDevices() {
+		return new ArrayList<>(pipelines);
+	}
+
+	/**
+	 * @return the number of pipelines which have found their device
+	 */
+	public synchronized int getConnectedCount() {
+		int connected = 0;
+		for (SerialCommsRunnable pipeline : pipelines) {
+			if (pipeline.isConnected())
+				connected++;
+		}
+		return connected;
+	}
+
+	/**
+	 * Closes every connection and stops every pipeline.
+	 */
+	public synchronized void closeAll() {
+		for (SerialCommsRunnable pipeline : pipelines)
+			pipeline.dispose();
+		pipelines.clear();
+	}
+}
@@ -0,0 +1,314 @@
+package data_threads;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
+
+/**
+ * Downloads the records stored in the device's frame buffer, so that a
+ * capture logged on the device does not have to be streamed back at the rate
+ * it was sampled at.
+ *
+ * GET_FRAMEBUFFER with no data is answered with the number of stored records
+ * (4 bytes, little-endian). GET_FRAMEBUFFER with the index of the first record
+ * (4 bytes, little-endian) and a record count (1 byte) is answered with one
+ * GET_FRAMEBUFFER frame per record, holding the record index followed by the
+ * record in the SLAVE_DATA format.
+ *
+ * Several chunks of records are requested at once so the link is never idle
+ * waiting for a request. A chunk which is not complete in time is requested
+ * again, and records which are received twice, or for a chunk which is
+ * already complete, are ignored.
+ *
+ * The records are stored in a FrameBufferHistory rather than with the
+ * streamed data, in the order they were recorded whatever order they arrive
+ * in, and saved to a .csv file.
+ */
+class FrameBufferDownload implements Runnable {
+	/** Number of records requested by each GET_FRAMEBUFFER command */
+	private static final int CHUNK_RECORDS = 64;
+
+	/** Number of chunks which can be requested before the first has been received */
+	private static final int WINDOW = 4;
+
+	/** How long to wait for a chunk before requesting it again (Milliseconds) */
+	private static final int CHUNK_TIME_OUT = 1000;
+
+	/** Number of times a chunk is requested before the download fails */
+	private static final int MAX_ATTEMPTS = 4;
+
+	/** Length of the record index at the start of each response */
+	private static final int INDEX_LENGTH = 4;
+
+	/** Sends the requests and stores the downloaded records */
+	private final SerialCommsRunnable serialCommsRunner;
+
+	/** Displays the download progress, updated on the event dispatch thread */
+	private final ProgressMonitor progressMonitor;
+
+	/** The number of records stored on the device */
+	private int totalRecords;
+
+	/** The records which have been received */
+	private BitSet received;
+	private int receivedCount;
+
+	/** The chunks which have been requested and not yet received, by first record index */
+	private final LinkedHashMap<Integer, Chunk> outstandingChunks = new LinkedHashMap<>();
+
+	/** Reusable array the record is copied into before it is stored */
+	private final byte[] record = new byte[FrameDecoder.MAX_DATA_LENGTH];
+
+	/** The index of the next record to store, the records are stored in order */
+	private int nextRecord;
+
+	/** Records received ahead of the next record to store, by index */
+	private final Map<Integer, byte[]> earlyRecords = new HashMap<>();
+
+	/** Holds the downloaded records apart from the streamed data */
+	private FrameBufferHistory history;
+
+	/** The .csv file the records are saved to */
+	private final File file;
+
+	/** Spaces the records within each second, separately from the streamed frames */
+	private final SampleClock sampleClock;
+
+	FrameBufferDownload(SerialCommsRunnable serialCommsRunner, ProgressMonitor progressMonitor, File file) {
+		this.serialCommsRunner = serialCommsRunner;
+		this.progressMonitor = progressMonitor;
+		this.file = file;
+		this.sampleClock = new SampleClock(serialCommsRunner.getSamplingPeriod());
+	}
+
+	@Override
+	public void run() {
+		int previousRate = serialCommsRunner.getDataRate();
+		try (Writer out = new BufferedWriter(new FileWriter(file))) {
+			int count = requestRecordCount();
+			synchronized (this) {
+				history = new FrameBufferHistory(serialCommsRunner.getModelDetails());
+				totalRecords = count;
+				received = new BitSet(totalRecords);
+			}
+			history.writeHeader(out);
+			setMaximum(totalRecords);
+
+			// download at the fastest rate the device supports
+			int maxRate = serialCommsRunner.getMaxBaudRate();
+			if (maxRate > previousRate && !serialCommsRunner.changeBaudRate(maxRate))
+				System.err.println("Downloading the frame buffer at " + previousRate + " baud");
+
+			downloadRecords(out);
+			history.writeRows(out);
+			System.out.println("Saved " + totalRecords + " records from the frame buffer to " + file);
+		} catch (InterruptedException e) {
+			System.err.println("Frame buffer download cancelled");
+		} catch (ExecutionException | CancellationException e) {
+			System.err.println("Frame buffer download failed: " + e.getMessage());
+		} catch (IOException e) {
+			System.err.println("Failed to write " + file + ": " + e.getMessage());
+		} finally {
+			if (serialCommsRunner.getDataRate() != previousRate)
+				serialCommsRunner.changeBaudRate(previousRate);
+			serialCommsRunner.frameBufferDownloadFinished(this);
+			if (history != null)
+				history.clearData();
+			close();
+		}
+	}
+
+	/**
+	 * @return the number of records stored in the device's frame buffer
+	 */
+	private int requestRecordCount() throws InterruptedException, ExecutionException {
+		byte[] response = serialCommsRunner.submitCommand(SerialCommsRunnable.GET_FRAMEBUFFER, null, true).get();
+		if (response.length < INDEX_LENGTH)
+			throw new ExecutionException("Invalid frame buffer size", null);
+		return readIndex(response, 0);
+	}
+
+	/**
+	 * Keeps WINDOW chunks requested until every record has been stored, and
+	 * saves the stored records as they arrive.
+	 */
+	private void downloadRecords(Writer out) throws InterruptedException, ExecutionException, IOException {
+		int nextChunk = 0;
+
+		while (true) {
+			if (isCancelled())
+				throw new InterruptedException();
+
+			synchronized (this) {
+				if (nextRecord >= totalRecords)
+					return;
+
+				// keep the window full
+				while (outstandingChunks.size() < WINDOW && nextChunk < totalRecords) {
+					Chunk chunk = new Chunk(nextChunk, Math.min(CHUNK_RECORDS, totalRecords - nextChunk));
+					outstandingChunks.put(chunk.first, chunk);
+					requestChunk(chunk);
+					nextChunk += chunk.count;
+				}
+
+				wait(CHUNK_TIME_OUT / 4);
+
+				// request any chunk that has not arrived in time again
+				long now = System.nanoTime();
+				for (Chunk chunk : outstandingChunks.values()) {
+					if (now - chunk.requestTime < CHUNK_TIME_OUT * 1000000L)
+						continue;
+					if (chunk.attempts >= MAX_ATTEMPTS)
+						throw new ExecutionException(String.format(
+								"No response for records %d to %d", chunk.first, chunk.first + chunk.count - 1), null);
+					requestChunk(chunk);
+				}
+			}
+
+			// the file is written without holding up the serial reading thread
+			history.writeRows(out);
+		}
+	}
+
+	private void requestChunk(Chunk chunk) {
+		// only request the part of the chunk which has not been received
+		int first = received.nextClearBit(chunk.first);
+		int count = chunk.first + chunk.count - first;
+
+		byte[] data = new byte[INDEX_LENGTH + 1];
+		for (int i=0; i < INDEX_LENGTH; i++)
+			data[i] = (byte) (first >>> 8*i);
+		data[INDEX_LENGTH] = (byte) count;
+
+		// the records still to come for the previous request are dropped
+		if (chunk.request != null)
+			chunk.request.cancel(false);
+
+		chunk.attempts++;
+		chunk.requestTime = System.nanoTime();
+		chunk.request = serialCommsRunner.submitStreamedCommand(SerialCommsRunnable.GET_FRAMEBUFFER,
+				data, count, CHUNK_TIME_OUT);
+	}
+
+	/**
+	 * Called on the serial reading thread when a record from the frame buffer is received.
+	 */
+	void recordReceived(byte[] data, int length) {
+		if (length <= INDEX_LENGTH)
+			return;
+		int index = readIndex(data, 0);
+		int progress;
+
+		synchronized (this) {
+			if (received == null || index < 0 || index >= totalRecords || received.get(index))
+				return;
+
+			// remove the chunk once all of its records have arrived, a record
+			// for no outstanding chunk is a late response to a completed chunk
+			Chunk chunk = null;
+			for (Chunk c : outstandingChunks.values()) {
+				if (index >= c.first && index < c.first + c.count) {
+					chunk = c;
+					break;
+				}
+			}
+			if (chunk == null)
+				return;
+
+			received.set(index);
+			progress = ++receivedCount;
+			if (received.nextClearBit(chunk.first) >= chunk.first + chunk.count)
+				outstandingChunks.remove(chunk.first);
+
+			// a record which arrived before the ones recorded ahead of it is kept until they arrive
+			if (index != nextRecord) {
+				earlyRecords.put(index, Arrays.copyOfRange(data, INDEX_LENGTH, length));
+			} else {
+				storeRecord(data, INDEX_LENGTH, length - INDEX_LENGTH);
+				byte[] early;
+				while ((early = earlyRecords.remove(nextRecord)) != null)
+					storeRecord(early, 0, early.length);
+				history.publishBuffers();
+			}
+			notifyAll();
+		}
+
+		if (progress % CHUNK_RECORDS == 0 || progress == totalRecords)
+			setProgress(progress);
+	}
+
+	/**
+	 * Stores the next record in the history the same way as a streamed SLAVE_DATA frame.
+	 */
+	private void storeRecord(byte[] data, int offset, int length) {
+		System.arraycopy(data, offset, record, 0, length);
+		serialCommsRunner.writeBufferToDataModels(record, length, sampleClock, history);
+		nextRecord++;
+	}
+
+	private static int readIndex(byte[] data, int offset) {
+		return (data[offset] & 0xFF) | (data[offset+1] & 0xFF) << 8
+				| (data[offset+2] & 0xFF) << 16 | (data[offset+3] & 0xFF) << 24;
+	}
+
+	private boolean isCancelled() {
+		return progressMonitor.isCanceled();
+	}
+
+	private void setMaximum(final int maximum) {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				progressMonitor.setMaximum(maximum);
+			}
+		});
+	}
+
+	private void setProgress(final int progress) {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				progressMonitor.setProgress(progress);
+				progressMonitor.setNote(progress + " records");
+			}
+		});
+	}
+
+	private void close() {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				progressMonitor.close();
+			}
+		});
+	}
+
+	/** A range of records requested with one GET_FRAMEBUFFER command */
+	private static class Chunk {
+		final int first;
+		final int count;
+		int attempts;
+		long requestTime;
+
+		/** The latest request for the chunk's records */
+		Future<byte[]> request;
+
+		Chunk(int first, int count) {
+			this.first = first;
+			this.count = count;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package data_threads;
+
+import java.awt.event.ActionEvent;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+
+import javax.swing.JButton;
+import javax.swing.JComboBox;
+
+import model.ObservableModelDetails;
+
+/**
+ * Holds the records downloaded from the device's frame buffer apart from the
+ * streamed data, so the old records are never mixed with the live samples in
+ * the data models and their series. The records must be added in the order
+ * they were recorded, and are written out as the rows of a .csv file.
+ *
+ * The buffers are created for the model connected when the download starts,
+ * and spill to disk rather than drop records when the file is written more
+ * slowly than the records arrive.
+ */
+class FrameBufferHistory extends DataRunnable {
+	/** Number of points each buffer holds in memory before it spills to disk */
+	private static final int MEMORY_CAPACITY = 1 << 16;
+
+	/** Number of rows drained from the buffers at a time */
+	private static final int BATCH_SIZE = 4096;
+
+	/** The buffer of each column of the file, in column order */
+	private final ArrayList<ChannelBuffer> columns = new ArrayList<>();
+	private final ArrayList<String> headings = new ArrayList<>();
+
+	/** The points drained from each column which have not been written yet */
+	private final long[][] times;
+	private final double[][] values;
+	private final int[] counts;
+
+	FrameBufferHistory(ObservableModelDetails obModelDetails) {
+		super(obModelDetails);
+
+		// the buffers are not replaced if the model changes during the download
+		obModelDetails.deleteObserver(this);
+		setBufferLimits(MEMORY_CAPACITY, OverflowPolicy.SPILL_TO_DISK);
+		update(obModelDetails, null);
+
+		// the derived quantities follow the voltage and current of each channel
+		for (int i = 0; i < voltageBuffers.size(); i++) {
+			addColumn(voltageBuffers.get(i), "Voltage " + i + " (V)");
+			addColumn(currentBuffers.get(i), "Current " + i + " (A)");
+			addColumn(powerBuffers.get(i), "Power " + i + " (W)");
+			addColumn(resistanceBuffers.get(i), "Resistance " + i + " (Ohm)");
+			addColumn(energyBuffers.get(i), "Energy " + i + " (J)");
+		}
+		for (int i = 0; i < temperatureBuffers.size(); i++)
+			addColumn(temperatureBuffers.get(i), "Temperature " + i);
+
+		times = new long[columns.size()][BATCH_SIZE];
+		values = new double[columns.size()][BATCH_SIZE];
+		counts = new int[columns.size()];
+	}
+
+	private void addColumn(ChannelBuffer column, String heading) {
+		columns.add(column);
+		headings.add(heading);
+	}
+
+	/**
+	 * Writes the heading of each column.
+	 */
+	void writeHeader(Writer out) throws IOException {
+		out.write("TIME");
+		for (String heading : headings)
+			out.write("," + heading);
+		out.write("\n");
+	}
+
+	/**
+	 * Writes a row for each record which has been added to every column, the
+	 * time is in Epoch milliseconds. Called by one thread, while the records
+	 * are added by another.
+	 */
+	void writeRows(Writer out) throws IOException {
+		if (columns.isEmpty())
+			return;
+
+		int rows;
+		do {
+			// the columns are published one after the other, so some may be ahead
+			rows = BATCH_SIZE;
+			for (int c = 0; c < columns.size(); c++) {
+				counts[c] += columns.get(c).drain(0, times[c], values[c], counts[c], BATCH_SIZE - counts[c]);
+				rows = Math.min(rows, counts[c]);
+			}
+
+			StringBuilder row = new StringBuilder();
+			for (int k = 0; k < rows; k++) {
+				row.setLength(0);
+				row.append(times[0][k]);
+				for (int c = 0; c < columns.size(); c++)
+					row.append(',').append(values[c][k]);
+				out.write(row.append('\n').toString());
+			}
+
+			// keep the points of the columns which are ahead for the next rows
+			for (int c = 0; c < columns.size(); c++) {
+				counts[c] -= rows;
+				System.arraycopy(times[c], rows, times[c], 0, counts[c]);
+				System.arraycopy(values[c], rows, values[c], 0, counts[c]);
+			}
+		} while (rows > 0);
+	}
+
+	@Override
+	public void run() { }
+
+	@Override
+	public void actionPerformed(ActionEvent e) { }
+
+	@Override
+	public boolean isRunning() {
+		return false;
+	}
+
+	@Override
+	void handleCaptureButtonClick(JButton button) { }
+
+	@Override
+	void handleComboBoxSelection(JComboBox<String> comboBox) { }
+}
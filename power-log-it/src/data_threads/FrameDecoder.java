@@ -0,0 +1,345 @@
+package data_threads;
+
+import java.util.zip.CRC32;
+
+/**
+ * Decodes the frames sent by the connected device from a stream of bytes.
+ *
+ * Received bytes are copied in bulk into a reusable ring buffer, and a state
+ * machine is run over the header, command, length, data, checksum and
+ * terminating character of each frame. A frame that is split across several
+ * reads is decoded once the remainder of its bytes has arrived.
+ *
+ * Frame format: ':' | address | command | length | data | checksum (4) | '\n'
+ *
+ * When the device profile uses a check sum, the checksum is the CRC32 of the
+ * bytes from ':' to the end of the data, sent little-endian. Frames with an
+ * incorrect checksum are counted and discarded.
+ *
+ * A frame with the wrong address, terminating character or checksum may be a
+ * ':' inside the data of a corrupted frame rather than the start of a frame.
+ * Only the ':' is discarded and the decoder resynchronises by scanning the
+ * following bytes again, so the frames after a corrupted frame are not lost.
+ *
+ * The decoder is NOT thread safe, it must only be fed by the thread that
+ * reads the serial port.
+ */
+class FrameDecoder {
+
+	/** Receives the frames that were successfully decoded */
+	interface FrameListener {
+		/**
+		 * Called for every complete frame.
+		 * @param command the command byte of the frame
+		 * @param data reusable array holding the frame data, only valid during the call
+		 * @param length the number of data bytes in the frame
+		 */
+		void frameDecoded(byte command, byte[] data, int length);
+	}
+
+	/** Framing bytes */
+	private static final byte START_BYTE = ':';
+	static final byte DEVICE_ADDRESS = 0x01;
+	static final byte HOST_ADDRESS = 0x00;
+	private static final byte TERMINATING_BYTE = '\n';
+	private static final int HEADER_LENGTH = 4;
+	private static final int CHECKSUM_LENGTH = 4;
+
+	/** Largest possible data length (the length field is a single byte) */
+	static final int MAX_DATA_LENGTH = 255;
+
+	/** Size of the ring buffer, must be a power of 2 */
+	private static final int RING_CAPACITY = 1 << 16;
+
+	/** Decoder states, one for each field of the frame */
+	private static final int STATE_START = 0;
+	private static final int STATE_ADDRESS = 1;
+	private static final int STATE_COMMAND = 2;
+	private static final int STATE_LENGTH = 3;
+	private static final int STATE_DATA = 4;
+	private static final int STATE_CHECKSUM = 5;
+	private static final int STATE_TERMINATOR = 6;
+
+	/** The ring buffer storing the bytes that have not yet been decoded */
+	private final byte[] ring = new byte[RING_CAPACITY];
+	private final int mask = RING_CAPACITY - 1;
+
+	/** Index of the first byte of the frame being decoded */
+	private int readIndex;
+
+	/** Number of bytes stored in the ring buffer */
+	private int count;
+
+	/** Number of bytes of the current frame that have been examined */
+	private int scanned;
+
+	/** State machine variables for the frame being decoded */
+	private int state = STATE_START;
+	private byte command;
+	private int dataLength;
+
+	/** Reusable array the frame data is copied into */
+	private final byte[] data = new byte[MAX_DATA_LENGTH];
+
+	/** Receives the decoded frames */
+	private final FrameListener listener;
+
+	/** The address of the sender of the frames */
+	private final byte address;
+
+	/** Indicates whether the checksum of each frame is verified */
+	private volatile boolean checkSumEnabled;
+
+	/** Reused to calculate the checksum of each frame */
+	private final CRC32 crc = new CRC32();
+
+	/** Counts the bytes, frames and errors seen by the decoder */
+	private final IngestMetrics metrics;
+
+	/**
+	 * Creates a decoder for the frames sent by the device.
+	 */
+	FrameDecoder(FrameListener listener) {
+		this(listener, DEVICE_ADDRESS);
+	}
+
+	/**
+	 * @param address the address of the sender, HOST_ADDRESS to decode the frames sent to the device
+	 */
+	FrameDecoder(FrameListener listener, byte address) {
+		this(listener, address, new IngestMetrics());
+	}
+
+	/**
+	 * @param metrics counts the bytes, frames and errors seen by the decoder
+	 */
+	FrameDecoder(FrameListener listener, byte address, IngestMetrics metrics) {
+		this.listener = listener;
+		this.address = address;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Copies the bytes into the ring buffer and decodes every complete frame.
+	 * @param src the bytes read from the serial port
+	 * @param offset index of the first byte to decode
+	 * @param length the number of bytes to decode
+	 */
+	void decode(byte[] src, int offset, int length) {
+		metrics.bytesReceived(length);
+		while (length > 0) {
+			int copied = offer(src, offset, length);
+			offset += copied;
+			length -= copied;
+			decode();
+		}
+	}
+
+	/**
+	 * Copies as many bytes as will fit into the ring buffer.
+	 * @return the number of bytes copied
+	 */
+	private int offer(byte[] src, int offset, int length) {
+		int toCopy = Math.min(length, RING_CAPACITY - count);
+		int writeIndex = (readIndex + count) & mask;
+
+		// copy up to the end of the ring, then wrap around to the start
+		int firstPart = Math.min(toCopy, RING_CAPACITY - writeIndex);
+		System.arraycopy(src, offset, ring, writeIndex, firstPart);
+		System.arraycopy(src, offset + firstPart, ring, 0, toCopy - firstPart);
+
+		count += toCopy;
+		return toCopy;
+	}
+
+	/**
+	 * Runs the state machine over the bytes in the ring buffer which have
+	 * not yet been examined.
+	 */
+	private void decode() {
+		while (scanned < count) {
+			byte b = ring[(readIndex + scanned) & mask];
+
+			switch (state) {
+			case STATE_START:
+				if (b != START_BYTE) {
+					// not the start of a frame
+					discard(1);
+					continue;
+				}
+				state = STATE_ADDRESS;
+				break;
+
+			case STATE_ADDRESS:
+				if (b != address) {
+					resync();
+					continue;
+				}
+				state = STATE_COMMAND;
+				break;
+
+			case STATE_COMMAND:
+				command = b;
+				state = STATE_LENGTH;
+				break;
+
+			case STATE_LENGTH:
+				dataLength = b & 0xFF;
+				state = dataLength > 0 ? STATE_DATA : STATE_CHECKSUM;
+				break;
+
+			case STATE_DATA:
+				// skip straight to the end of the data if it has arrived
+				int dataEnd = HEADER_LENGTH + dataLength;
+				if (count < dataEnd) {
+					scanned = count;
+					return;
+				}
+				scanned = dataEnd;
+				state = STATE_CHECKSUM;
+				continue;
+
+			case STATE_CHECKSUM:
+				int checksumEnd = HEADER_LENGTH + dataLength + CHECKSUM_LENGTH;
+				if (count < checksumEnd) {
+					scanned = count;
+					return;
+				}
+				scanned = checksumEnd;
+				state = STATE_TERMINATOR;
+				continue;
+
+			case STATE_TERMINATOR:
+				if (b != TERMINATING_BYTE) {
+					resync();
+					continue;
+				}
+				scanned++;
+				if (checkSumEnabled && !checkSumMatches()) {
+					metrics.checkSumFailed();
+					resync();
+					continue;
+				}
+				completeFrame();
+				continue;
+			}
+
+			scanned++;
+		}
+	}
+
+	/**
+	 * Copies the frame data out of the ring buffer, notifies the listener
+	 * and removes the frame from the ring buffer.
+	 */
+	private void completeFrame() {
+		copyFromRing(HEADER_LENGTH, data, dataLength);
+
+		// remove the frame before the listener is called
+		int length = dataLength;
+		discard(scanned);
+		metrics.frameDecoded();
+
+		listener.frameDecoded(command, data, length);
+	}
+
+	/**
+	 * Compares the CRC32 of the current frame with the checksum sent in the frame.
+	 */
+	private boolean checkSumMatches() {
+		int frameLength = HEADER_LENGTH + dataLength;
+		int start = readIndex;
+		int firstPart = Math.min(frameLength, RING_CAPACITY - start);
+
+		crc.reset();
+		crc.update(ring, start, firstPart);
+		crc.update(ring, 0, frameLength - firstPart);
+
+		// the checksum follows the data, least significant byte first
+		int received = 0;
+		for (int i = CHECKSUM_LENGTH - 1; i >= 0; i--)
+			received = (received << 8) | (ring[(readIndex + frameLength + i) & mask] & 0xFF);
+
+		return received == (int) crc.getValue();
+	}
+
+	/**
+	 * Calculates the checksum of a frame to be sent to the device.
+	 * @param frame the frame bytes, starting with ':'
+	 * @param length the number of bytes from ':' to the end of the data
+	 * @return the CRC32 of the bytes
+	 */
+	static int checkSum(byte[] frame, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(frame, 0, length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Copies bytes from the current frame in the ring buffer.
+	 * @param frameOffset offset of the first byte from the start of the frame
+	 */
+	private void copyFromRing(int frameOffset, byte[] dest, int length) {
+		int start = (readIndex + frameOffset) & mask;
+		int firstPart = Math.min(length, RING_CAPACITY - start);
+		System.arraycopy(ring, start, dest, 0, firstPart);
+		System.arraycopy(ring, 0, dest, firstPart, length - firstPart);
+	}
+
+	/**
+	 * Throws away the start byte of an invalid frame, the bytes after it are
+	 * scanned again for the start of the next frame.
+	 */
+	private void resync() {
+		metrics.resynced();
+		state = STATE_START;
+		discard(1);
+	}
+
+	/**
+	 * Removes bytes from the front of the ring buffer and restarts the
+	 * state machine.
+	 */
+	private void discard(int numBytes) {
+		if (state == STATE_START)
+			metrics.bytesSkipped(numBytes);
+
+		readIndex = (readIndex + numBytes) & mask;
+		count -= numBytes;
+		scanned = 0;
+		state = STATE_START;
+	}
+
+	/**
+	 * Discards any partially received frame, used when the input is flushed.
+	 */
+	void reset() {
+		readIndex = 0;
+		count = 0;
+		scanned = 0;
+		state = STATE_START;
+	}
+
+	/**
+	 * @param checkSumEnabled true if the device profile uses a check sum
+	 */
+	void setCheckSumEnabled(boolean checkSumEnabled) {
+		this.checkSumEnabled = checkSumEnabled;
+	}
+
+	long getDroppedBytes() {
+		return metrics.getBytesSkipped();
+	}
+
+	long getCheckSumErrors() {
+		return metrics.getCheckSumFailures();
+	}
+
+	long getResyncCount() {
+		return metrics.getResyncs();
+	}
+
+	IngestMetrics getMetrics() {
+		return metrics;
+	}
+}
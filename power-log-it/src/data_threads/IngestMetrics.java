@@ -0,0 +1,159 @@
+package data_threads;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters for the acquisition path of one device connection.
+ *
+ * The counters are updated by the thread reading the serial port without
+ * taking a lock, and can be read at any time from any other thread, e.g. by
+ * the status bar or to log the health of a connection. Rates are found by
+ * comparing the counts read at two points in time.
+ */
+public class IngestMetrics {
+	/** Number of different error codes the device can send */
+	private static final int NUM_ERROR_CODES = 256;
+
+	/** Frames which were decoded successfully */
+	private final AtomicLong framesDecoded = new AtomicLong();
+
+	/** Bytes read from the serial port */
+	private final AtomicLong bytesReceived = new AtomicLong();
+
+	/** Bytes discarded because they were not part of a valid frame */
+	private final AtomicLong bytesSkipped = new AtomicLong();
+
+	/** Frames discarded because of an incorrect checksum */
+	private final AtomicLong checkSumFailures = new AtomicLong();
+
+	/** Times the decoder found an invalid frame and resynchronised */
+	private final AtomicLong resyncs = new AtomicLong();
+
+	/** SLAVE_DATA frames whose data could not be parsed */
+	private final AtomicLong parseFailures = new AtomicLong();
+
+	/** Number of CMD_ERROR frames received for each error code */
+	private final AtomicLongArray deviceErrors = new AtomicLongArray(NUM_ERROR_CODES);
+	private final AtomicLong totalDeviceErrors = new AtomicLong();
+
+	/** The last error code sent by the device, -1 if there has been none */
+	private volatile int lastDeviceError = -1;
+
+	/** Times the lost connection was made again, and the total time without data (Milliseconds) */
+	private final AtomicLong reconnects = new AtomicLong();
+	private final AtomicLong reconnectGapMillis = new AtomicLong();
+
+	void frameDecoded() {
+		framesDecoded.incrementAndGet();
+	}
+
+	void bytesReceived(int numBytes) {
+		bytesReceived.addAndGet(numBytes);
+	}
+
+	void bytesSkipped(int numBytes) {
+		bytesSkipped.addAndGet(numBytes);
+	}
+
+	void checkSumFailed() {
+		checkSumFailures.incrementAndGet();
+	}
+
+	void resynced() {
+		resyncs.incrementAndGet();
+	}
+
+	void parseFailed() {
+		parseFailures.incrementAndGet();
+	}
+
+	void deviceError(byte errorCode) {
+		deviceErrors.incrementAndGet(errorCode & 0xFF);
+		totalDeviceErrors.incrementAndGet();
+		lastDeviceError = errorCode & 0xFF;
+	}
+
+	void reconnected(long gapMillis) {
+		reconnects.incrementAndGet();
+		reconnectGapMillis.addAndGet(gapMillis);
+	}
+
+	public long getFramesDecoded() {
+		return framesDecoded.get();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	public long getBytesSkipped() {
+		return bytesSkipped.get();
+	}
+
+	public long getCheckSumFailures() {
+		return checkSumFailures.get();
+	}
+
+	public long getResyncs() {
+		return resyncs.get();
+	}
+
+	public long getParseFailures() {
+		return parseFailures.get();
+	}
+
+	/**
+	 * @return the total number of errors sent by the device
+	 */
+	public long getDeviceErrors() {
+		return totalDeviceErrors.get();
+	}
+
+	/**
+	 * @param errorCode one of the error codes sent in a CMD_ERROR frame
+	 * @return the number of times the device has sent the error code
+	 */
+	public long getDeviceErrors(int errorCode) {
+		return deviceErrors.get(errorCode & 0xFF);
+	}
+
+	/**
+	 * @return the last error code sent by the device, -1 if there has been none
+	 */
+	public int getLastDeviceError() {
+		return lastDeviceError;
+	}
+
+	public long getReconnects() {
+		return reconnects.get();
+	}
+
+	/**
+	 * @return the total time without data caused by lost connections (Milliseconds)
+	 */
+	public long getReconnectGapMillis() {
+		return reconnectGapMillis.get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("frames=").append(getFramesDecoded())
+			.append(" bytes=").append(getBytesReceived())
+			.append(" skipped=").append(getBytesSkipped())
+			.append(" resyncs=").append(getResyncs())
+			.append(" crcFailures=").append(getCheckSumFailures())
+			.append(" parseFailures=").append(getParseFailures())
+			.append(" deviceErrors=").append(getDeviceErrors())
+			.append(" reconnects=").append(getReconnects())
+			.append(" reconnectGapMs=").append(getReconnectGapMillis());
+
+		for (int i = 0; i < NUM_ERROR_CODES; i++) {
+			long count = deviceErrors.get(i);
+			if (count > 0)
+				sb.append(String.format(" [0x%02X]=%d", i, count));
+		}
+		return sb.toString();
+	}
+}
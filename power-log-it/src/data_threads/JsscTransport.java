@@ -0,0 +1,101 @@
+package data_threads;
+
+import jssc.SerialPort;
+import jssc.SerialPortEventListener;
+import jssc.SerialPortException;
+import jssc.SerialPortList;
+import jssc.SerialPortTimeoutException;
+
+/**
+ * A serial port accessed through jssc, the default transport.
+ */
+public class JsscTransport implements SerialTransport {
+
+	/** Creates jssc transports for the serial ports of the computer */
+	public static final SerialTransportFactory FACTORY = new SerialTransportFactory() {
+		@Override
+		public String[] getPortNames() {
+			return SerialPortList.getPortNames();
+		}
+
+		@Override
+		public SerialTransport create(String portName) {
+			return new JsscTransport(portName);
+		}
+	};
+
+	private final SerialPort serialPort;
+
+	public JsscTransport(String portName) {
+		serialPort = new SerialPort(portName);
+	}
+
+	@Override
+	public String getPortName() {
+		return serialPort.getPortName();
+	}
+
+	@Override
+	public void open(int baudRate) throws SerialPortException {
+		serialPort.openPort();
+		try {
+			setBaudRate(baudRate);
+		} catch (SerialPortException e) {
+			serialPort.closePort();
+			throw e;
+		}
+	}
+
+	@Override
+	public void setBaudRate(int baudRate) throws SerialPortException {
+		serialPort.setParams(baudRate,
+				SerialPort.DATABITS_8,
+				SerialPort.STOPBITS_1,
+				SerialPort.PARITY_NONE);
+	}
+
+	@Override
+	public void write(byte[] bytes) throws SerialPortException {
+		serialPort.writeBytes(bytes);
+	}
+
+	@Override
+	public byte[] read(int byteCount) throws SerialPortException {
+		return serialPort.readBytes(byteCount);
+	}
+
+	@Override
+	public byte[] read(int byteCount, int timeout) throws SerialPortException, SerialPortTimeoutException {
+		return serialPort.readBytes(byteCount, timeout);
+	}
+
+	@Override
+	public int available() throws SerialPortException {
+		return serialPort.getInputBufferBytesCount();
+	}
+
+	@Override
+	public void purgeInput() throws SerialPortException {
+		serialPort.purgePort(SerialPort.PURGE_RXCLEAR);
+	}
+
+	@Override
+	public void addDataListener(SerialPortEventListener listener) throws SerialPortException {
+		serialPort.addEventListener(listener, SerialPort.MASK_RXCHAR);
+	}
+
+	@Override
+	public void removeDataListener() throws SerialPortException {
+		serialPort.removeEventListener();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return serialPort.isOpened();
+	}
+
+	@Override
+	public void close() throws SerialPortException {
+		serialPort.closePort();
+	}
+}
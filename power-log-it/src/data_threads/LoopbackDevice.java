@@ -0,0 +1,502 @@
+package data_threads;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import jssc.SerialPortEvent;
+import jssc.SerialPortEventListener;
+import jssc.SerialPortException;
+import jssc.SerialPortTimeoutException;
+
+/**
+ * An in-memory device which speaks the Log4 protocol, used in place of a
+ * serial port to load-test the decoder and the acquisition pipeline without
+ * hardware and at rates the hardware can not reach.
+ *
+ * The device answers GET_ID, KEEP_ALIVE, SET_SAMPLING, GET_BAUD_RATES,
+ * SET_BAUD_RATE, SET_DATE_TIME and SET_DATA_FORMAT, and answers every other
+ * command with ERR_INVALID_CMD. SLAVE_DATA frames are streamed from when the
+ * port is opened, at the configured rate until SET_SAMPLING changes it. The
+ * frames are ASCII until SET_DATA_FORMAT selects the binary format, which is
+ * refused when the firmware version is set below the binary data version.
+ *
+ * All of the device's work is done on its own thread, the frames it sends are
+ * buffered until they are read, as in the receive buffer of a serial port.
+ */
+public class LoopbackDevice implements SerialTransport, FrameDecoder.FrameListener {
+	/** How often the streamed frames are generated (Milliseconds) */
+	private static final int STREAM_PERIOD = 1;
+
+	/** Size of the receive buffer, bytes which do not fit are lost */
+	private static final int RECEIVE_BUFFER_SIZE = 1 << 20;
+
+	/** The baud rates listed in response to GET_BAUD_RATES */
+	private static final String BAUD_RATES = "115200";
+
+	/**
+	 * Creates loopback devices named LOOPBACK0, LOOPBACK1, ...
+	 * @param numDevices the number of devices to list
+	 * @param framesPerSecond the initial rate of the streamed SLAVE_DATA frames
+	 */
+	public static SerialTransportFactory factory(int numDevices, double framesPerSecond) {
+		final Map<String, LoopbackDevice> devices = new LinkedHashMap<>();
+		for (int i = 0; i < numDevices; i++) {
+			String portName = "LOOPBACK" + i;
+			devices.put(portName, new LoopbackDevice(portName, framesPerSecond));
+		}
+
+		// the same device is returned for a port, so it can only be opened once
+		return new SerialTransportFactory() {
+			@Override
+			public String[] getPortNames() {
+				return devices.keySet().toArray(new String[devices.size()]);
+			}
+
+			@Override
+			public SerialTransport create(String portName) {
+				return devices.get(portName);
+			}
+		};
+	}
+
+	private final String portName;
+
+	/** Model number sent in response to GET_ID */
+	private int model = 1;
+
+	/** Firmware version sent in response to GET_ID (1.0.0, which supports binary data) */
+	private int firmwareVersion = 0x010000;
+
+	/** The type of each streamed channel ('V', 'I' or 'T') */
+	private char[] channelTypes = {'I', 'V'};
+
+	/** Indicates whether checksums are sent and verified */
+	private boolean checkSum;
+
+	/** Decodes the commands sent by the host, only used on the device thread */
+	private FrameDecoder commandDecoder;
+
+	/** Runs the device */
+	private ScheduledExecutorService deviceThread;
+
+	/** Bytes sent by the device and not yet read by the host */
+	private final byte[] receiveBuffer = new byte[RECEIVE_BUFFER_SIZE];
+	private int receiveIndex;
+	private int receiveCount;
+	private long overflowBytes;
+
+	/** Called when the device sends bytes */
+	private volatile SerialPortEventListener listener;
+
+	private volatile boolean open;
+
+	/** Streaming state, only used on the device thread */
+	private double framesPerSecond;
+	private long streamStartTime;
+	private long framesStreamed;
+	private final StringBuilder record = new StringBuilder();
+	private final Calendar calendar = Calendar.getInstance();
+	private long recordSecond = -1;
+	private String recordTimePrefix;
+	private boolean binaryData;
+	private final byte[] binaryTime = new byte[7];
+
+	public LoopbackDevice(String portName, double framesPerSecond) {
+		this.portName = portName;
+		this.framesPerSecond = framesPerSecond;
+	}
+
+	public void setModel(int model) {
+		this.model = model;
+	}
+
+	/**
+	 * @param firmwareVersion major << 16 | minor << 8 | patch, 0 for firmware which
+	 *        does not send its version and only streams ASCII
+	 */
+	public void setFirmwareVersion(int firmwareVersion) {
+		this.firmwareVersion = firmwareVersion;
+	}
+
+	/**
+	 * @param channelFormats the type of each channel, e.g. {"I", "V"}
+	 */
+	public void setChannelFormats(String[] channelFormats) {
+		char[] types = new char[channelFormats.length];
+		for (int i = 0; i < channelFormats.length; i++)
+			types[i] = channelFormats[i].charAt(0);
+		channelTypes = types;
+	}
+
+	/**
+	 * @param checkSum true if the device profile uses a check sum
+	 */
+	public void setCheckSum(boolean checkSum) {
+		this.checkSum = checkSum;
+	}
+
+	/**
+	 * @return the number of bytes lost because they were not read in time
+	 */
+	public synchronized long getOverflowBytes() {
+		return overflowBytes;
+	}
+
+	@Override
+	public String getPortName() {
+		return portName;
+	}
+
+	@Override
+	public synchronized void open(int baudRate) throws SerialPortException {
+		if (open)
+			throw new SerialPortException(portName, "open", SerialPortException.TYPE_PORT_ALREADY_OPENED);
+
+		commandDecoder = new FrameDecoder(this, FrameDecoder.HOST_ADDRESS);
+		commandDecoder.setCheckSumEnabled(checkSum);
+		receiveCount = 0;
+		binaryData = false;
+		open = true;
+
+		deviceThread = Executors.newSingleThreadScheduledExecutor();
+		deviceThread.execute(new Runnable() {
+			@Override
+			public void run() {
+				restartStream();
+			}
+		});
+		deviceThread.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				stream();
+			}
+		}, STREAM_PERIOD, STREAM_PERIOD, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void setBaudRate(int baudRate) throws SerialPortException {
+		checkOpen("setBaudRate");
+	}
+
+	@Override
+	public void write(final byte[] bytes) throws SerialPortException {
+		checkOpen("write");
+		try {
+			deviceThread.execute(new Runnable() {
+				@Override
+				public void run() {
+					commandDecoder.decode(bytes, 0, bytes.length);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the port was closed
+			throw new SerialPortException(portName, "write", SerialPortException.TYPE_PORT_NOT_OPENED);
+		}
+	}
+
+	@Override
+	public synchronized byte[] read(int byteCount) throws SerialPortException {
+		while (receiveCount < byteCount) {
+			checkOpen("read");
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SerialPortException(portName, "read", "Interrupted");
+			}
+		}
+		return take(byteCount);
+	}
+
+	@Override
+	public synchronized byte[] read(int byteCount, int timeout)
+			throws SerialPortException, SerialPortTimeoutException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		while (receiveCount < byteCount) {
+			checkOpen("read");
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (remaining <= 0)
+				throw new SerialPortTimeoutException(portName, "read", timeout);
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SerialPortException(portName, "read", "Interrupted");
+			}
+		}
+		return take(byteCount);
+	}
+
+	@Override
+	public synchronized int available() throws SerialPortException {
+		checkOpen("available");
+		return receiveCount;
+	}
+
+	@Override
+	public synchronized void purgeInput() throws SerialPortException {
+		checkOpen("purgeInput");
+		receiveCount = 0;
+	}
+
+	@Override
+	public void addDataListener(SerialPortEventListener listener) throws SerialPortException {
+		checkOpen("addDataListener");
+		if (this.listener != null)
+			throw new SerialPortException(portName, "addDataListener", SerialPortException.TYPE_LISTENER_ALREADY_ADDED);
+		this.listener = listener;
+	}
+
+	@Override
+	public void removeDataListener() throws SerialPortException {
+		if (listener == null)
+			throw new SerialPortException(portName, "removeDataListener", SerialPortException.TYPE_CANT_REMOVE_LISTENER);
+		listener = null;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public synchronized void close() throws SerialPortException {
+		checkOpen("close");
+		open = false;
+		listener = null;
+		deviceThread.shutdownNow();
+		notifyAll();
+	}
+
+	/**
+	 * Handles a command sent by the host, called on the device thread.
+	 */
+	@Override
+	public void frameDecoded(byte command, byte[] data, int length) {
+		switch (command) {
+		case SerialCommsRunnable.GET_ID:
+			if (firmwareVersion == 0) {
+				send(command, new byte[] {(byte) model, (byte) (model >>> 8),
+						(byte) (model >>> 16), (byte) (model >>> 24)});
+			} else {
+				send(command, new byte[] {(byte) model, (byte) (model >>> 8),
+						(byte) (model >>> 16), (byte) (model >>> 24),
+						(byte) firmwareVersion, (byte) (firmwareVersion >>> 8),
+						(byte) (firmwareVersion >>> 16), (byte) (firmwareVersion >>> 24)});
+			}
+			break;
+
+		case SerialCommsRunnable.SET_DATA_FORMAT:
+			if (firmwareVersion < 0x010000 || length < 1) {
+				send(SerialCommsRunnable.CMD_ERROR, new byte[] {SerialCommsRunnable.ERR_INVALID_CMD});
+				break;
+			}
+			// acknowledge with the new format, the frames after the acknowledgement use it
+			binaryData = data[0] == SerialCommsRunnable.DATA_FORMAT_BINARY;
+			recordSecond = -1;
+			send(command, new byte[] {data[0]});
+			break;
+
+		case SerialCommsRunnable.SET_SAMPLING:
+			// the sampling period in milliseconds follows the sampling mode
+			if (length >= 5) {
+				int samplingPeriod = (data[1] & 0xFF) | (data[2] & 0xFF) << 8
+						| (data[3] & 0xFF) << 16 | (data[4] & 0xFF) << 24;
+				if (samplingPeriod > 0) {
+					framesPerSecond = 1000.0 / samplingPeriod;
+					restartStream();
+				}
+			}
+			send(command, new byte[0]);
+			break;
+
+		case SerialCommsRunnable.GET_BAUD_RATES:
+			send(command, BAUD_RATES.getBytes(StandardCharsets.US_ASCII));
+			break;
+
+		case SerialCommsRunnable.KEEP_ALIVE_CMD:
+		case SerialCommsRunnable.SET_BAUD_RATE:
+		case SerialCommsRunnable.SET_DATE_TIME:
+			send(command, new byte[0]);
+			break;
+
+		default:
+			send(SerialCommsRunnable.CMD_ERROR, new byte[] {SerialCommsRunnable.ERR_INVALID_CMD});
+			break;
+		}
+	}
+
+	private void restartStream() {
+		streamStartTime = System.nanoTime();
+		framesStreamed = 0;
+	}
+
+	/**
+	 * Sends the SLAVE_DATA frames which are due, called periodically on the device thread.
+	 */
+	private void stream() {
+		long elapsed = System.nanoTime() - streamStartTime;
+		long due = (long) (elapsed / 1e9 * framesPerSecond) - framesStreamed;
+		if (due <= 0)
+			return;
+
+		byte[][] frames = new byte[(int) due][];
+		int length = 0;
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = encodeFrame((byte) SerialCommsRunnable.SLAVE_DATA,
+					binaryData ? nextBinaryRecord() : nextRecord());
+			length += frames[i].length;
+			framesStreamed++;
+		}
+
+		// send all of the due frames at once
+		byte[] bytes = new byte[length];
+		int offset = 0;
+		for (byte[] frame : frames) {
+			System.arraycopy(frame, 0, bytes, offset, frame.length);
+			offset += frame.length;
+		}
+		receive(bytes);
+	}
+
+	/**
+	 * @return the next record in the SLAVE_DATA format: yyyy-mm-dd,hh:mm:ss,value,...
+	 */
+	private byte[] nextRecord() {
+		long now = System.currentTimeMillis();
+		long second = now / 1000;
+		if (second != recordSecond) {
+			recordSecond = second;
+			calendar.setTimeInMillis(now);
+			recordTimePrefix = String.format("%04d-%02d-%02d,%02d:%02d:%02d",
+					calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1,
+					calendar.get(Calendar.DAY_OF_MONTH), calendar.get(Calendar.HOUR_OF_DAY),
+					calendar.get(Calendar.MINUTE), calendar.get(Calendar.SECOND));
+		}
+
+		record.setLength(0);
+		record.append(recordTimePrefix);
+		long n = framesStreamed;
+		for (char channelType : channelTypes) {
+			record.append(',');
+			if (channelType == 'I')
+				record.append(100000 + n % 1000);	// about 100 mA, in uA
+			else if (channelType == 'V')
+				record.append(5000 - n % 100);		// about 5 V, in mV
+			else
+				record.append(25 + n % 10);
+		}
+		return record.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return the next record in the binary SLAVE_DATA format, see SlaveDataParser
+	 */
+	private byte[] nextBinaryRecord() {
+		long now = System.currentTimeMillis();
+		long second = now / 1000;
+		if (second != recordSecond) {
+			recordSecond = second;
+			calendar.setTimeInMillis(now);
+			int year = calendar.get(Calendar.YEAR);
+			binaryTime[0] = (byte) year;
+			binaryTime[1] = (byte) (year >>> 8);
+			binaryTime[2] = (byte) (calendar.get(Calendar.MONTH) + 1);
+			binaryTime[3] = (byte) calendar.get(Calendar.DAY_OF_MONTH);
+			binaryTime[4] = (byte) calendar.get(Calendar.HOUR_OF_DAY);
+			binaryTime[5] = (byte) calendar.get(Calendar.MINUTE);
+			binaryTime[6] = (byte) calendar.get(Calendar.SECOND);
+		}
+
+		long n = framesStreamed;
+		byte[] bytes = new byte[8 + 4 * channelTypes.length];
+		System.arraycopy(binaryTime, 0, bytes, 0, binaryTime.length);
+		bytes[7] = (byte) n;
+		for (int i = 0; i < channelTypes.length; i++) {
+			int value;
+			if (channelTypes[i] == 'I')
+				value = (int) (100000 + n % 1000);	// about 100 mA, in uA
+			else if (channelTypes[i] == 'V')
+				value = (int) (5000 - n % 100);		// about 5 V, in mV
+			else
+				value = (int) (25 + n % 10);
+			for (int j = 0; j < 4; j++)
+				bytes[8 + 4 * i + j] = (byte) (value >>> (8 * j));
+		}
+		return bytes;
+	}
+
+	private void send(byte command, byte[] data) {
+		receive(encodeFrame(command, data));
+	}
+
+	/**
+	 * Builds a frame sent by the device.
+	 */
+	private byte[] encodeFrame(byte command, byte[] data) {
+		byte[] frame = new byte[data.length + 9];
+		frame[0] = ':';
+		frame[1] = FrameDecoder.DEVICE_ADDRESS;
+		frame[2] = command;
+		frame[3] = (byte) data.length;
+		System.arraycopy(data, 0, frame, 4, data.length);
+
+		if (checkSum) {
+			int crc = FrameDecoder.checkSum(frame, data.length + 4);
+			for (int i = 0; i < 4; i++)
+				frame[data.length + 4 + i] = (byte) (crc >>> (8 * i));
+		}
+		frame[data.length + 8] = '\n';
+		return frame;
+	}
+
+	/**
+	 * Adds the bytes sent by the device to the receive buffer and notifies the host.
+	 */
+	private void receive(byte[] bytes) {
+		int available;
+		synchronized (this) {
+			if (!open)
+				return;
+
+			int toCopy = Math.min(bytes.length, RECEIVE_BUFFER_SIZE - receiveCount);
+			overflowBytes += bytes.length - toCopy;
+
+			int writeIndex = (receiveIndex + receiveCount) % RECEIVE_BUFFER_SIZE;
+			int firstPart = Math.min(toCopy, RECEIVE_BUFFER_SIZE - writeIndex);
+			System.arraycopy(bytes, 0, receiveBuffer, writeIndex, firstPart);
+			System.arraycopy(bytes, firstPart, receiveBuffer, 0, toCopy - firstPart);
+			receiveCount += toCopy;
+			available = receiveCount;
+			notifyAll();
+		}
+
+		SerialPortEventListener listener = this.listener;
+		if (listener != null)
+			listener.serialEvent(new SerialPortEvent(portName, SerialPortEvent.RXCHAR, available));
+	}
+
+	/**
+	 * Removes bytes from the receive buffer, the caller holds the lock.
+	 */
+	private byte[] take(int byteCount) {
+		byte[] bytes = new byte[byteCount];
+		int firstPart = Math.min(byteCount, RECEIVE_BUFFER_SIZE - receiveIndex);
+		System.arraycopy(receiveBuffer, receiveIndex, bytes, 0, firstPart);
+		System.arraycopy(receiveBuffer, 0, bytes, firstPart, byteCount - firstPart);
+		receiveIndex = (receiveIndex + byteCount) % RECEIVE_BUFFER_SIZE;
+		receiveCount -= byteCount;
+		return bytes;
+	}
+
+	private void checkOpen(String methodName) throws SerialPortException {
+		if (!open)
+			throw new SerialPortException(portName, methodName, SerialPortException.TYPE_PORT_NOT_OPENED);
+	}
+}
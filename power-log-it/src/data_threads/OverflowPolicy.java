@@ -0,0 +1,14 @@
+package data_threads;
+
+/**
+ * What a full channel buffer does with a new point. A dropped point is
+ * counted once for each consumer which misses it.
+ */
+public enum OverflowPolicy {
+	/** Drop the oldest point in the buffer to make room */
+	DROP_OLDEST,
+	/** Drop the new point */
+	DROP_NEWEST,
+	/** Write the new point to a temporary file, it is read back when the buffer is drained */
+	SPILL_TO_DISK
+}
@@ -0,0 +1,188 @@
+package data_threads;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jssc.SerialPortException;
+import jssc.SerialPortTimeoutException;
+
+/**
+ * Checks whether a Log4 device is connected to a serial port by sending
+ * GET_ID and waiting a short time for the response. The request is sent at
+ * each of the baud rates in turn until the device responds, as the device may
+ * still be at a negotiated rate or back at its default rate after a reset.
+ *
+ * Every port is probed on its own thread, and the first probe to find a
+ * device claims it. The port is left open for the probe which claimed the
+ * device, every other port is closed again.
+ */
+class PortProbe implements Callable<PortProbe>, FrameDecoder.FrameListener {
+	/** How long to wait for the GET_ID response (Milliseconds) */
+	private static final int PROBE_TIME_OUT = 250;
+
+	/** The outcome of a probe */
+	enum Result {
+		/** A device responded and this probe claimed it, the port is open */
+		FOUND,
+		/** A device responded after another probe claimed a device, the port is closed */
+		NOT_CLAIMED,
+		/** The port did not respond to GET_ID, the port is closed */
+		NO_DEVICE,
+		/** Bytes were received at every rate, but no Log4 frame, the port is closed */
+		OTHER_DEVICE
+	}
+
+	private final SerialTransport serialPort;
+
+	/** The baud rates to try, in order */
+	private final int[] dataRates;
+
+	/** The baud rate the request was last sent at */
+	private int dataRate;
+
+	/** The encoded GET_ID frame */
+	private final byte[] request;
+
+	/** Set by the first probe to find a device */
+	private final AtomicBoolean claimed;
+
+	/** Decodes the response read from the port */
+	private final FrameDecoder frameDecoder = new FrameDecoder(this);
+
+	private Result result;
+
+	/** The model number sent in response to GET_ID, -1 until it is received */
+	private int model = -1;
+
+	/** Set when any frame is received from a Log4 device, e.g. a streamed SLAVE_DATA */
+	private boolean log4FrameDecoded;
+
+	/** The firmware version sent in response to GET_ID, 0 if the firmware does not send it */
+	private int firmwareVersion;
+
+	PortProbe(SerialTransport serialPort, int[] dataRates, byte[] request, AtomicBoolean claimed) {
+		this.serialPort = serialPort;
+		this.dataRates = dataRates;
+		this.request = request;
+		this.claimed = claimed;
+	}
+
+	/**
+	 * Opens the port, sends GET_ID at each rate and waits for the response.
+	 * @throws SerialPortException if the port could not be opened, e.g. it is in use
+	 */
+	@Override
+	public PortProbe call() throws SerialPortException {
+		serialPort.open(dataRates[0]);
+
+		// whether something other than silence came back at every rate
+		boolean receivedAtEveryRate = true;
+		try {
+			for (int i = 0; i < dataRates.length && model < 0; i++) {
+				if (i > 0)
+					serialPort.setBaudRate(dataRates[i]);
+				dataRate = dataRates[i];
+				if (!sendRequest())
+					receivedAtEveryRate = false;
+			}
+		} catch (SerialPortException e) {
+			close();
+			throw e;
+		}
+
+		if (model < 0) {
+			// a silent port, or a Log4 which did not answer in time, may be a
+			// device which is still starting up
+			result = receivedAtEveryRate && !log4FrameDecoded ? Result.OTHER_DEVICE : Result.NO_DEVICE;
+			close();
+		} else if (claimed.compareAndSet(false, true)) {
+			result = Result.FOUND;
+		} else {
+			result = Result.NOT_CLAIMED;
+			close();
+		}
+		return this;
+	}
+
+	/**
+	 * Sends GET_ID at the current rate and waits for the response.
+	 * @return true if any bytes were received
+	 */
+	private boolean sendRequest() throws SerialPortException {
+		serialPort.purgeInput();
+		serialPort.write(request);
+
+		boolean received = false;
+		long deadline = System.nanoTime() + PROBE_TIME_OUT * 1000000L;
+		long remaining;
+		while (model < 0 && (remaining = (deadline - System.nanoTime()) / 1000000L) > 0) {
+			try {
+				byte[] firstByte = serialPort.read(1, (int) remaining);
+				frameDecoder.decode(firstByte, 0, 1);
+				received = true;
+			} catch (SerialPortTimeoutException e) {
+				break;
+			}
+
+			int available = serialPort.available();
+			if (available > 0) {
+				byte[] bytes = serialPort.read(available);
+				frameDecoder.decode(bytes, 0, bytes.length);
+			}
+		}
+		return received;
+	}
+
+	@Override
+	public void frameDecoded(byte command, byte[] data, int length) {
+		log4FrameDecoded = true;
+		if (command != SerialCommsRunnable.GET_ID || length < 4)
+			return;
+
+		// the model number and firmware version are sent least significant byte first
+		if (length >= 8)
+			firmwareVersion = (data[4] & 0xFF) | (data[5] & 0xFF) << 8
+					| (data[6] & 0xFF) << 16 | (data[7] & 0xFF) << 24;
+		model = (data[0] & 0xFF) | (data[1] & 0xFF) << 8
+				| (data[2] & 0xFF) << 16 | (data[3] & 0xFF) << 24;
+	}
+
+	/**
+	 * Closes the port, used when the port is not kept.
+	 */
+	void close() {
+		try {
+			if (serialPort.isOpen())
+				serialPort.close();
+		} catch (SerialPortException e) {
+			System.err.println("Failed to close " + serialPort.getPortName());
+		}
+	}
+
+	String getPortName() {
+		return serialPort.getPortName();
+	}
+
+	SerialTransport getSerialPort() {
+		return serialPort;
+	}
+
+	Result getResult() {
+		return result;
+	}
+
+	/**
+	 * @return the baud rate the device responded at
+	 */
+	int getDataRate() {
+		return dataRate;
+	}
+
+	int getModel() {
+		return model;
+	}
+
+	int getFirmwareVersion() {
+		return firmwareVersion;
+	}
+}
@@ -0,0 +1,111 @@
+package data_threads;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records every byte received from the device into a capture file, so a
+ * session can be replayed bit for bit through the decoder with CaptureReplay.
+ *
+ * File format, little-endian:
+ * magic "LOG4RAW1" (8) | model (4) | firmware version (4) | data format (1) |
+ * start time, epoch milliseconds (8)
+ * followed by one record per read from the port:
+ * time since the start, nanoseconds (8) | length (4) | the bytes read
+ *
+ * Records are gathered in a large buffer and written to the file in bulk, so
+ * the reading thread rarely waits for the disk.
+ */
+class RawCapture {
+	/** "LOG4RAW1" */
+	static final long MAGIC = 0x3157415234474F4CL;
+
+	static final int HEADER_LENGTH = 25;
+	static final int RECORD_HEADER_LENGTH = 12;
+
+	/** Size of the buffer the records are gathered in */
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final File file;
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	private final long startTime = System.nanoTime();
+	private long bytesCaptured;
+	private boolean closed;
+
+	/**
+	 * Creates the capture file, replacing any existing file.
+	 * @param model the model number of the connected device
+	 * @param firmwareVersion the firmware version of the connected device
+	 * @param binaryData true if the device is streaming SLAVE_DATA in the binary format
+	 */
+	RawCapture(File file, int model, int firmwareVersion, boolean binaryData) throws IOException {
+		this.file = file;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+		buffer.putLong(MAGIC);
+		buffer.putInt(model);
+		buffer.putInt(firmwareVersion);
+		buffer.put(binaryData ? SerialCommsRunnable.DATA_FORMAT_BINARY : SerialCommsRunnable.DATA_FORMAT_ASCII);
+		buffer.putLong(System.currentTimeMillis());
+	}
+
+	/**
+	 * Appends the bytes read from the port, called on the thread reading the port.
+	 * Bytes read after the capture was closed are ignored.
+	 */
+	synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+		if (closed)
+			return;
+		if (buffer.remaining() < RECORD_HEADER_LENGTH + length)
+			flush();
+
+		buffer.putLong(System.nanoTime() - startTime);
+		buffer.putInt(length);
+
+		// a read larger than the buffer is written straight to the file
+		if (buffer.remaining() < length) {
+			flush();
+			ByteBuffer src = ByteBuffer.wrap(bytes, offset, length);
+			while (src.hasRemaining())
+				channel.write(src);
+		} else {
+			buffer.put(bytes, offset, length);
+		}
+		bytesCaptured += length;
+	}
+
+	/**
+	 * Writes the remaining records and closes the file.
+	 */
+	synchronized void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	synchronized long getBytesCaptured() {
+		return bytesCaptured;
+	}
+}
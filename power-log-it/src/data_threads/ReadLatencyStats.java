@@ -0,0 +1,71 @@
+package data_threads;
+
+/**
+ * Records how long it takes to read and decode each batch of bytes received
+ * from the serial port, so the acquisition modes can be compared.
+ *
+ * The latency of a batch is measured from when the data is noticed (the
+ * serial event firing, or the blocking read returning) until all of its
+ * frames have been decoded.
+ */
+public class ReadLatencyStats {
+	/** Number of batches read */
+	private long count;
+
+	/** Total and maximum latency of the batches (nanoseconds) */
+	private long totalNanos;
+	private long maxNanos;
+
+	/** Total number of bytes read */
+	private long totalBytes;
+
+	/**
+	 * @param nanos the time taken to read and decode the batch
+	 * @param bytes the number of bytes in the batch
+	 */
+	synchronized void record(long nanos, int bytes) {
+		count++;
+		totalNanos += nanos;
+		totalBytes += bytes;
+		if (nanos > maxNanos)
+			maxNanos = nanos;
+	}
+
+	public synchronized void reset() {
+		count = 0;
+		totalNanos = 0;
+		maxNanos = 0;
+		totalBytes = 0;
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the mean latency of a batch in microseconds
+	 */
+	public synchronized double getMeanMicros() {
+		return count == 0 ? 0 : totalNanos / 1e3 / count;
+	}
+
+	/**
+	 * @return the largest latency of a batch in microseconds
+	 */
+	public synchronized double getMaxMicros() {
+		return maxNanos / 1e3;
+	}
+
+	/**
+	 * @return the mean number of bytes read in a batch
+	 */
+	public synchronized double getMeanBatchSize() {
+		return count == 0 ? 0 : (double) totalBytes / count;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d reads, mean %.1f us, max %.1f us, mean %.1f bytes/read",
+				count, getMeanMicros(), getMaxMicros(), getMeanBatchSize());
+	}
+}
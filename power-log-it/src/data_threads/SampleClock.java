@@ -0,0 +1,108 @@
+package data_threads;
+
+/**
+ * Gives each SLAVE_DATA frame its own millisecond time, although the device
+ * only time stamps the frames to the second.
+ *
+ * The frames within a device second are spaced by the sampling period, in the
+ * order they were received. Binary frames carry a sequence number, so frames
+ * lost in the link leave a gap instead of shifting the frames after them.
+ *
+ * If the device sent more frames in the previous second than the sampling
+ * period allows, e.g. because the device is sampling at a different rate, the
+ * frames are spaced evenly over the second instead. A frame is never placed
+ * later than the last millisecond of its device second.
+ *
+ * The times are strictly increasing, so no two frames share a Millisecond;
+ * a frame which would not be later than the previous frame is placed 1 ms
+ * after it. A device second earlier than the current one starts a new
+ * sequence of times.
+ *
+ * The clock is NOT thread safe, it must only be used by the thread that
+ * decodes the frames.
+ */
+class SampleClock {
+	/** The sampling period selected for the device (Milliseconds) */
+	private volatile int samplingPeriod;
+
+	/** Epoch milliseconds of the current device second */
+	private long currentSecond = Long.MIN_VALUE;
+
+	/** Number of frames received so far in the current device second */
+	private int frameInSecond;
+
+	/** The spacing of the frames in the current device second (Milliseconds) */
+	private double frameSpacing;
+
+	/** The sequence number of the previous frame, -1 if it is not known */
+	private int lastSequence = -1;
+
+	/** The time given to the previous frame */
+	private long lastTime = Long.MIN_VALUE;
+
+	/**
+	 * @param samplingPeriod the sampling period selected for the device (Milliseconds)
+	 */
+	SampleClock(int samplingPeriod) {
+		this.samplingPeriod = samplingPeriod;
+	}
+
+	/**
+	 * @param secondMillis the device time stamp of the frame in epoch milliseconds
+	 * @param sequence the sequence number of the frame (0 to 255), -1 for an ASCII frame
+	 * @return the time of the frame in epoch milliseconds
+	 */
+	long timeOf(long secondMillis, int sequence) {
+		if (secondMillis != currentSecond) {
+			if (secondMillis < currentSecond)
+				reset();
+
+			// fit the frames into the second if the last whole second had too many
+			frameSpacing = samplingPeriod;
+			if (secondMillis == currentSecond + 1000 && frameInSecond * frameSpacing > 1000)
+				frameSpacing = 1000.0 / frameInSecond;
+
+			currentSecond = secondMillis;
+			frameInSecond = 0;
+		} else if (sequence >= 0 && lastSequence >= 0) {
+			// leave room for the frames which were lost
+			frameInSecond += ((sequence - lastSequence) & 0xFF) - 1;
+		}
+		lastSequence = sequence;
+
+		long time = secondMillis + Math.min((long) (frameInSecond++ * frameSpacing), 999);
+		if (time <= lastTime)
+			time = lastTime + 1;
+
+		lastTime = time;
+		return time;
+	}
+
+	/**
+	 * Starts a new sequence of times, used when a new connection is made.
+	 */
+	void reset() {
+		currentSecond = Long.MIN_VALUE;
+		frameInSecond = 0;
+		lastSequence = -1;
+		lastTime = Long.MIN_VALUE;
+	}
+
+	/**
+	 * @param samplingPeriod the sampling period selected for the device (Milliseconds)
+	 */
+	void setSamplingPeriod(int samplingPeriod) {
+		this.samplingPeriod = samplingPeriod;
+	}
+
+	int getSamplingPeriod() {
+		return samplingPeriod;
+	}
+
+	/**
+	 * @return the time given to the previous frame, Long.MIN_VALUE if there is none
+	 */
+	long getLastTime() {
+		return lastTime;
+	}
+}
@@ -2,59 +2,80 @@ package data_threads;
 
 import jssc.*;
 
+import java.awt.Component;
 import java.awt.event.ActionEvent;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Date;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Observable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.JButton;
 import javax.swing.JComboBox;
 import javax.swing.JMenuBar;
 import javax.swing.JRadioButtonMenuItem;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
 
 import model.ObservableModelDetails;
-import model.TimeDataPoint;
 
-import org.jfree.data.time.Millisecond;
-
-
-public class SerialCommsRunnable extends DataRunnable implements SerialPortEventListener {
+public class SerialCommsRunnable extends DataRunnable implements SerialPortEventListener,
+		FrameDecoder.FrameListener {
 	/** The thread the searches for a serial connection */
 	private Thread connectionThread;
 	
-	/** Locks for the communication, closing and opening on serial port */
-	private static final Object CLOSE_LOCK = new Object();
-	private static final Object INITIALISE_LOCK = new Object();
-	private static final Object COMMUNICATION_LOCK = new Object();
+	/** Locks for the reading, writing, closing and opening on serial port,
+	 *  each connected device has its own locks */
+	private final Object closeLock = new Object();
+	private final Object initialiseLock = new Object();
+	private final Object readLock = new Object();
+	private final Object writeLock = new Object();
 	
 	/** Commands for in-line power monitor */
-	private static final byte CMD_ERROR = 0x00;
-	private static final byte GET_ID = 0x01;
-	private static final byte KEEP_ALIVE_CMD = 0x02;
+	static final byte CMD_ERROR = 0x00;
+	static final byte GET_ID = 0x01;
+	static final byte KEEP_ALIVE_CMD = 0x02;
 	private static final byte GET_CHANNELS = 0x03;
-	private static final byte SET_BAUD_RATE = 0x04;
-	private static final byte GET_BAUD_RATES = 0x05;
-	private static final byte SET_SAMPLING = 0x06;
+	static final byte SET_BAUD_RATE = 0x04;
+	static final byte GET_BAUD_RATES = 0x05;
+	static final byte SET_SAMPLING = 0x06;
 	private static final byte GET_SAMPLING = 0x07;
-	private static final byte SET_DATE_TIME =  0x08;
+	static final byte SET_DATE_TIME =  0x08;
 	private static final byte GET_DATE_TIME =  0x09;
 	private static final byte SET_SLEEP =  0x0A;
-	private static final int SLAVE_DATA = 0x0B;
-	private static final byte GET_FRAMEBUFFER =  0x0C;
+	static final int SLAVE_DATA = 0x0B;
+	static final byte GET_FRAMEBUFFER =  0x0C;
 	private static final byte FORCE_EVENT =  0x0D;
+	static final byte SET_DATA_FORMAT = 0x0E;
+	
+	/** SLAVE_DATA encodings selected with SET_DATA_FORMAT */
+	static final byte DATA_FORMAT_ASCII = 0x00;
+	static final byte DATA_FORMAT_BINARY = 0x01;
 	
 	/** Generic Error Codes*/
 	private static final byte ERR_INVALID_DATA = 0x01;
-	private static final byte ERR_INVALID_CMD = 0x02;
+	static final byte ERR_INVALID_CMD = 0x02;
 	private static final byte ERR_TIME_OUT = 0x03;
 	private static final byte ERR_INVALID_COUNT = 0x04;
 	private static final byte ERR_BUSY = 0x05;
@@ -68,10 +89,11 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
 	
 	
 	/** Object used for serial communication */
-	private SerialPort serialPort;
+	private SerialTransport serialPort;
+	
+	/** Creates the transports for the ports, jssc serial ports by default */
+	private SerialTransportFactory transportFactory = JsscTransport.FACTORY;
     
-    /** Buffered input stream from the port */
-    private InputStream input;
     
     //TODO port time out should not be hard coded (Milliseconds)
     private static final int PORT_TIME_OUT = 5000;
@@ -82,22 +104,133 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
     // TODO KEEP_ALIVE_TIME_OUT should not be hard coded (Milliseconds)
     private static final int KEEP_ALIVE_TIME_OUT = 1600;
     
+    /** How long the reader thread blocks waiting for data (Milliseconds) */
+    private static final int READ_TIME_OUT = 100;
+    
+    /** How often the watchdog checks the port, data and keep-alive deadlines (Milliseconds) */
+    private static final int WATCHDOG_PERIOD = 100;
+    
+    /** How long a lost connection is retried on its last port before every port is searched (Milliseconds) */
+    private static final int FAST_RECONNECT_TIME = 5000;
+    
+    /** The bits per second the device starts at after it is reset */
+    private static final int DEFAULT_DATA_RATE = 115200;
+    
+    /** How long a port which answered as some other device is skipped (Milliseconds) */
+    private static final int REJECTED_PORT_TIME = 30000;
+    
     /** Default bits per second for COM port. */
-    private int dataRate = 115200;
+    private volatile int dataRate = DEFAULT_DATA_RATE;
+    
+    /** Counters for the bytes, frames and errors received from the device */
+    private final IngestMetrics ingestMetrics = new IngestMetrics();
+    
+    /** Records the frames sent and received, dumped when the device reports an error */
+    private final TraceRing trace = new TraceRing();
+    
+    /** Decodes the frames from the bytes read from the serial port */
+    private final FrameDecoder frameDecoder = new FrameDecoder(this, FrameDecoder.DEVICE_ADDRESS, ingestMetrics);
+    
+    /** Parses the data of the SLAVE_DATA frames */
+    private final SlaveDataParser slaveDataParser = new SlaveDataParser();
+    
+    /** Indicates whether the device sends SLAVE_DATA in the binary format rather than ASCII */
+    private volatile boolean binaryData;
+    
+    /** Records the received bytes to a file while a raw capture is running */
+    private volatile RawCapture rawCapture;
+    
+    /** Converts the SLAVE_DATA time stamps to epoch milliseconds */
+    private final TimestampDecoder timestampDecoder = new TimestampDecoder();
     
-    /** The input data buffer. */
-    private String inputBuffer="";
+    /** Spaces the streamed frames within each second of the device time stamps */
+    private final SampleClock sampleClock = new SampleClock(getSamplingPeriod());
+    
+    /** How often the sampling rate can be lowered or raised again by the back-off (Milliseconds) */
+    private static final int RATE_BACKOFF_PERIOD = 5000;
+    
+    /** The sampling periods offered by the Sampling Rate menu, fastest first (Milliseconds) */
+    private static final int[] SAMPLING_PERIODS = {1, 10, 100, 1000, 60000, 3600000};
+    
+    /** The sampling period last selected from the menu, the back-off never samples faster */
+    private volatile int selectedSamplingPeriod = sampleClock.getSamplingPeriod();
+    
+    /** The SET_SAMPLING commands the device has not answered yet, oldest first, guarded by itself */
+    private final ArrayDeque<SamplingChange> samplingChanges = new ArrayDeque<>();
+    
+    /** Indicates whether the device is asked to sample more slowly when the channel buffers fill up */
+    private volatile boolean rateBackoff = !Boolean.getBoolean("log4.buffer.noBackoff");
+    
+    /** The earliest time the sampling rate can next be changed by the back-off (nanoTime) */
+    private long nextRateBackoff = System.nanoTime();
+    
+    /** Indicates whether the SLAVE_DATA frames are decoded into the channel buffers */
+    private volatile boolean decodeSamples = true;
+    
+    /** Selects whether data is read on the jssc event thread or a dedicated reader thread */
+    private AcquisitionMode acquisitionMode = AcquisitionMode.READER_THREAD;
+    
+    /** Thread performing the blocking reads in READER_THREAD mode */
+    private Thread readerThread;
+    private volatile boolean readerRunning;
+    
+    /** Indicates whether this is registered as the serial port event listener */
+    private boolean eventListenerAdded;
+    
+    /** Time taken to read and decode each batch of received bytes */
+    private final ReadLatencyStats readLatencyStats = new ReadLatencyStats();
+    
+    /** The type of each channel ('V', 'I' or 'T') in the order they are sent */
+    private char[] channelTypes = new char[0];
+    private String[] cachedChannelFormats;
+    
+    /** Voltage and current values for one point in time (multiple channels) */
+    private double[] newVoltages = new double[0];
+    private double[] newCurrents = new double[0];
  
     /** A list of the connected COM PORTs */
     private String[] portNames;
     
+    /** Ports which answered as some other device, skipped until the time (nanoTime) or until they are unplugged */
+    private final Map<String, Long> rejectedPorts = new HashMap<>();
+    
+    /** Runs the probes of the serial ports, one thread per port */
+    private final ExecutorService probeExecutor = Executors.newCachedThreadPool();
+    
     /** Thread used for executing serial comms timer events */
     private ScheduledExecutorService ex;
     
-    /** Handler used for terminating a scheduled timer */
-    private ScheduledFuture<?> portTimeoutTask;
-    private ScheduledFuture<?> dataTimeoutTask;
-    private ScheduledFuture<?> keepAliveTimeoutTask;
+    /** Sends commands and matches them with the device's responses */
+    private final CommandDispatcher commandDispatcher;
+    
+    /** Chooses the fastest baud rate the link can sustain after connecting */
+    private final BaudRateNegotiator baudRateNegotiator = new BaudRateNegotiator(this);
+    
+    /** Set while the baud rate combo-box is updated, so the update is not handled as a user selection */
+    private volatile boolean updatingBaudComboBox;
+    
+    /** Downloads the records stored on the device, null when no download is running */
+    private volatile FrameBufferDownload frameBufferDownload;
+    
+    /** Handler used for terminating the scheduled watchdog timer */
+    private ScheduledFuture<?> watchdogTask;
+    
+    /** Times (System.nanoTime) of the last activity checked by the watchdog */
+    private volatile long lastRxTime;
+    private volatile long lastTxTime;
+    private volatile long lastDataFlushTime;
+    
+    /** The port the device was last found on, null until it has been found */
+    private volatile String lastPortName;
+    
+    /** Set when the connection was lost, the session is kept if the same device is found again */
+    private volatile boolean reconnecting;
+    
+    /** When the connection was lost (Epoch milliseconds) */
+    private volatile long connectionLostTime;
+    
+    /** The periods without data caused by lost connections, each {lost, reconnected} in epoch milliseconds */
+    private final List<long[]> connectionGaps = Collections.synchronizedList(new ArrayList<long[]>());
     
     /** Connection combo-box */
     private JComboBox<StringBuffer> connectComboBox;
@@ -112,6 +245,10 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
 	/** Boolean indicates whether the connection or serial communications 
 	 * thread is running */
 	private boolean running;
+	
+	/** Set when a capture is replayed, until the connection thread is next
+	 * started or closed, so the data models drain the replayed data */
+	private volatile boolean replaying;
     
     /** Used to determine which combo box fired the event */
 	private static final String CONNECT_ACTION_STR = "connect";
@@ -121,7 +258,6 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
 	private StringBuffer[] connectStringBuffers;
     
     //TODO debugging purposes
-    int droppedBytes;
     long startTime;
     
     //TODO remove hard coded COM PORT
@@ -138,11 +274,35 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
     	// Initialise the timer thread
     	ex = Executors.newSingleThreadScheduledExecutor();
     	
+    	// Commands are retried on the timer thread
+    	commandDispatcher = new CommandDispatcher(this, ex);
+    	
     	// Start looking for a connection by default
 //    	connectionThread = new Thread(this);
 //    	connectionThread.start();
     }
     
+    /**
+     * Constructor for a device which is not shown in the GUI, used by the
+     * DeviceManager to run one pipeline per device.
+     */
+    public SerialCommsRunnable(ObservableModelDetails obModelDetails) {
+    	super(obModelDetails);
+    	
+    	ex = Executors.newSingleThreadScheduledExecutor();
+    	commandDispatcher = new CommandDispatcher(this, ex);
+    }
+    
+    /**
+     * Called when the device model changes, the received frames are only
+     * checked if the new model uses a check sum.
+     */
+    @Override
+    public void update(Observable o, Object arg) {
+    	super.update(o, arg);
+    	frameDecoder.setCheckSumEnabled(obModelDetails.hasCheckSum());
+    }
+    
     @Override
     /***
      * Method is called when the user wants to connect to the slaved device
@@ -150,6 +310,7 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
 	public void run() {
     	// connection thread is running
     	running = true;
+    	replaying = false;
     	
 		// No COM ports have been enumerated yet 
 		portNames = null;
@@ -171,38 +332,54 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
      */
     private void initialize() {
     	// ensure that only one thread can ever call the initialize method
-    	synchronized (INITIALISE_LOCK) {
+    	synchronized (initialiseLock) {
         	// we have not yet found the connected device's serial port
         	serialPort = null;
         	
-        	// default is to capture data being streamed
-        	captureData = true;
+        	// the device streams ASCII until the binary format is negotiated
+        	binaryData = false;
+        	
+        	// after a lost connection the buffers and series are kept for the same device
+        	boolean keepSession = reconnecting;
+        	reconnecting = false;
         	
-        	obModelDetails.changeModel(0);
-			obModelDetails.setFirmwareVersion(0);
+        	if (keepSession) {
+        		// the device is most likely on the port it was lost from
+        		PortProbe probe = reopenLastPort();
+        		if (probe != null)
+        			useDevice(probe, true);
+        	} else {
+        		// default is to capture data being streamed
+        		captureData = true;
+        		sampleClock.reset();
+        		connectionGaps.clear();
+        		
+        		// a new device starts at the default rate, whatever rate was negotiated before
+        		dataRate = DEFAULT_DATA_RATE;
+        		
+        		obModelDetails.changeModel(0);
+        		obModelDetails.setFirmwareVersion(0);
+        	}
 			
-            // iterate through, looking for the port
+            // probe every port at once, looking for the device
     	    while (serialPort == null && !Thread.interrupted()) {
-    	    	portNames = SerialPortList.getPortNames();
-    	    		// Check whether the child is on this port
-    	    		//TODO remove hard coded COM PORT/ Done, how do we deal with conntecting to a device that isn't a Log4?
-            		for(int currPortId=0;currPortId<portNames.length;currPortId++){
-            			// restart the port timer
-            			restartPortTimeout();
-    	            
-            		
-            			System.out.println("Found " + portNames[currPortId]);
-            			// TODO read the device model number and use it here to get JSON device details
-            			serialPort=openConnection(portNames[currPortId]);
-            			
-            			
-            			getID();
-            		
-            		
-    	            if(serialPort != null)
-    	            	break;
-    	            
-    	        }
+    	    	portNames = transportFactory.getPortNames();
+    	    	
+    	    	// restart the port timer
+    	    	restartPortTimeout();
+    	    	
+    	    	PortProbe probe;
+    	    	try {
+    	    		probe = probePorts(portNames, getProbeRates());
+    	    	} catch (InterruptedException e) {
+    	    		System.out.println("Connection thread probe interrupted");
+    	    		return;
+    	    	}
+    	    	
+    	    	if (probe != null) {
+    	    		useDevice(probe, keepSession);
+    	    		break;
+    	    	}
     	    	
     	    	try {
     				Thread.sleep(100);
@@ -213,30 +390,23 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
     			}
     	    	
     	    	System.out.println("Looking for serial port");
-    	    	
     	    }
     	    
     	    if (serialPort == null) {
     	    	System.out.println("Connection thread interrupt");
     	    	return;
     	    }
-    	  //get compatible device baudrates
-            //getBaudRates();
-    	    
+    	    // restart the port, data and keep-alive timers
+    	    restartWatchdog();
     	    
-    	    // restart all timer tasks
-    	    restartPortTimeout();
-    	    restartDataTimeout();
-    	    restartKeepaliveTimeout();
-    	    
-            // add event listeners for detecting serial data available
-            try {
-            	int mask=SerialPort.MASK_RXCHAR;
-    			serialPort.addEventListener(this);
-    			serialPort.setEventsMask(mask);
-    		} catch (Exception e){
-    			e.printStackTrace();
-    		}
+            // start reading the data sent by the device
+            startReading();
+            
+            // move to the fastest baud rate the device and the link support
+            selectBaudRate(baudRateNegotiator.negotiate());
+            
+            // use the compact SLAVE_DATA format if the firmware supports it
+            negotiateDataFormat();
             
             
             
@@ -244,84 +414,184 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
             connectComboBoxes("Connected");
             System.out.println("Child found");
             
+            if (keepSession)
+            	markConnectionGap();
+            
           //set device date to current system time
     	    setDate();
 
 		}
     }
     
-    private SerialPort openConnection(String portName) {
-    	SerialPort serialPort = new SerialPort(portName);
+    /**
+     * Starts using the device found by a probe.
+     * @param keepSession true to keep the buffers and series of the previous
+     *        connection, they are only kept if the same model is found
+     */
+    private void useDevice(PortProbe probe, boolean keepSession) {
+    	System.out.println("Found " + probe.getPortName());
+    	serialPort = probe.getSerialPort();
+    	lastPortName = probe.getPortName();
     	
-        try {
-            // open serial port
-        	serialPort.openPort();
-            // set port parameters
-            serialPort.setParams(dataRate, // baud rate
-                    SerialPort.DATABITS_8,
-                    SerialPort.STOPBITS_1,
-                    SerialPort.PARITY_NONE);
-            
-            // check if the device responded appropriately, therefore is the slave
-            if (queryChild())
-            	return serialPort;
-
-        	serialPort.closePort();
-            return null;
-        } catch (Exception e) {
-            System.err.println("Failed to connect to COM PORT: " + portName);
-            return null;
-        }
-        
+    	// any change to the model details recreates the buffers and series
+    	if (!keepSession || !Integer.valueOf(probe.getModel()).equals(obModelDetails.getModelNumber()))
+    		obModelDetails.changeModel(probe.getModel());
+    	if (!keepSession || probe.getFirmwareVersion() != obModelDetails.getFirmwareVersion())
+    		obModelDetails.setFirmwareVersion(probe.getFirmwareVersion());
     }
     
-    private boolean queryChild() {
-    	//sendCommand(GET_CMD, null);
-//    	int childID = childResponded();
-//    	if (childID >= 0) {
-//    		obModelDetails.changeModel(childID);
-//    		return true;
-//    	}
-//    	return false;
-    	return true;
+    /**
+     * Retries the port the device was last found on until it answers or
+     * FAST_RECONNECT_TIME has passed. The device is tried at the baud rate it
+     * was using, then at the rate it starts at in case it was reset.
+     * @return the probe of the port with the port open, or null if the device
+     *         did not answer or the thread was interrupted
+     */
+    private PortProbe reopenLastPort() {
+    	String portName = lastPortName;
+    	int[] rates = getProbeRates();
+    	byte[] request = encodeFrame(GET_ID, null);
+    	long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FAST_RECONNECT_TIME);
+    	
+    	while (System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+    		restartPortTimeout();
+    		
+    		// the port disappears while the device is unplugged or resetting
+    		if (Arrays.asList(transportFactory.getPortNames()).contains(portName)) {
+    			try {
+    				PortProbe probe = new PortProbe(transportFactory.create(portName), rates, request, new AtomicBoolean()).call();
+    				if (probe.getResult() == PortProbe.Result.FOUND) {
+    					dataRate = probe.getDataRate();
+    					return probe;
+    				}
+    			} catch (SerialPortException e) {
+    				// the port is not ready yet, try again
+    			}
+    		}
+    		
+    		try {
+    			Thread.sleep(100);
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    			return null;
+    		}
+    	}
+    	
+    	System.out.println("Device not found on " + portName + ", searching every port");
+    	return null;
     }
     
     /**
-     * Method reads the response of the child and checks to see whether it is the
-     * desired slave based on the response.
-     * @return -1 if the connected device is not from the Power-Log-IT series,
-     * else return the model number of the connected device
+     * Records the period without data between losing the connection and
+     * reconnecting to the same device, and breaks the series at it.
      */
-    private int childResponded() throws SerialPortException {
-    	byte[] childIDBytes = new byte[4];
-        
+    private void markConnectionGap() {
+    	long reconnectedTime = System.currentTimeMillis();
+    	connectionGaps.add(new long[] { connectionLostTime, reconnectedTime });
+    	ingestMetrics.reconnected(reconnectedTime - connectionLostTime);
+    	
+    	// the device's clock may differ from ours, the gap must follow the last point
+    	addGap(Math.max(connectionLostTime, sampleClock.getLastTime() + 1));
+    	
+    	// times continue from the device's clock, not from before the gap
+    	sampleClock.reset();
+    	System.out.printf("Reconnected after %d ms without data%n", reconnectedTime - connectionLostTime);
+    }
+    
+    /**
+     * @return the baud rates the device is probed at: the default rate the
+     *         device starts at, after the negotiated rate if the device may
+     *         still be using it
+     */
+    private int[] getProbeRates() {
+    	int rate = dataRate;
+    	return rate == DEFAULT_DATA_RATE ? new int[] { rate } : new int[] { rate, DEFAULT_DATA_RATE };
+    }
+    
+    /**
+     * Sends GET_ID on every port which is not known to be some other device,
+     * and waits for the first port to respond.
+     * @param portNames the serial ports currently attached
+     * @param rates the baud rates each port is probed at
+     * @return the probe of the port the device was found on, with the port
+     *         open, or null if no device responded
+     */
+    private PortProbe probePorts(String[] portNames, int[] rates) throws InterruptedException {
+    	// forget the ports which have been unplugged, a device may be plugged in instead,
+    	// and retry the rejected ports from time to time
+    	long now = System.nanoTime();
+    	List<String> attached = Arrays.asList(portNames);
+    	for (Iterator<Map.Entry<String, Long>> it = rejectedPorts.entrySet().iterator(); it.hasNext();) {
+    		Map.Entry<String, Long> rejected = it.next();
+    		if (!attached.contains(rejected.getKey()) || now - rejected.getValue() >= 0)
+    			it.remove();
+    	}
+    	
+    	byte[] request = encodeFrame(GET_ID, null);
+    	AtomicBoolean claimed = new AtomicBoolean();
+    	final CompletionService<PortProbe> probes = new ExecutorCompletionService<>(probeExecutor);
+    	
+    	Map<Future<PortProbe>, String> probedPorts = new HashMap<>();
+    	for (String portName : portNames) {
+    		if (!rejectedPorts.containsKey(portName))
+    			probedPorts.put(probes.submit(new PortProbe(transportFactory.create(portName), rates, request, claimed)), portName);
+    	}
+    	
+    	for (int i = 0; i < probedPorts.size(); i++) {
+    		Future<PortProbe> future;
     		try {
-				if(!readHeader() || GET_ID != input.read())
-					return -1;
-				 
-		    	// get the number of available data bytes at the input 
-		    	int available = input.read();
-		    	for(int i=0;i<available;i++)
-		    		childIDBytes[i] = (byte) input.read();
-		        
-		    	int childID = ByteBuffer.wrap(childIDBytes).getInt();
-		    	
-		    	// Read and IGNORE checksum
-		    	input.read();
-		    	input.read();
-		    	input.read();
-		    	input.read();
-		    	
-		    	// Read terminating character
-		    	System.out.println(childID);
-		    	if(input.read() != '\n' || childID <=0)
-		    		return -1;
-		    	
-		    	return childID;
-    		} catch (IOException e) {
-				e.printStackTrace();
-				return -1;
-			} 
+    			future = probes.take();
+    		} catch (InterruptedException e) {
+    			// no probe can claim the device now, but one may already have
+    			if (!claimed.compareAndSet(false, true))
+    				closeClaimedPort(probes, probedPorts.size() - i);
+    			throw e;
+    		}
+    		
+    		try {
+    			PortProbe probe = future.get();
+    			if (probe.getResult() == PortProbe.Result.FOUND) {
+    				// the remaining probes close their ports
+    				dataRate = probe.getDataRate();
+    				return probe;
+    			} else if (probe.getResult() == PortProbe.Result.OTHER_DEVICE) {
+    				rejectedPorts.put(probe.getPortName(),
+    						System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REJECTED_PORT_TIME));
+    			}
+    		} catch (ExecutionException e) {
+    			// the port could not be opened, it is tried again on the next sweep
+    			System.err.println("Failed to connect to COM PORT: " + probedPorts.get(future));
+    		}
+    	}
+    	
+    	return null;
+    }
+    
+    /**
+     * Closes the port of the probe which claimed the device after the search
+     * was interrupted, once the outstanding probes have finished.
+     * @param probes the probes of the interrupted search
+     * @param outstanding the number of probes which have not been taken
+     */
+    private void closeClaimedPort(final CompletionService<PortProbe> probes, final int outstanding) {
+    	probeExecutor.execute(new Runnable() {
+    		@Override
+    		public void run() {
+    			for (int i = 0; i < outstanding; i++) {
+    				try {
+    					PortProbe probe = probes.take().get();
+    					if (probe.getResult() == PortProbe.Result.FOUND) {
+    						probe.close();
+    						return;
+    					}
+    				} catch (ExecutionException e) {
+    					// the port was not opened
+    				} catch (InterruptedException e) {
+    					return;
+    				}
+    			}
+    		}
+    	});
     }
 
     /**
@@ -329,9 +599,10 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
      * This will prevent port locking on platforms like Linux.
      */
     public void close() {
-    	synchronized (CLOSE_LOCK) {
+    	synchronized (closeLock) {
     		// thread is no longer running
     		running = false;
+    		replaying = false;
     		
     		// if the connection thread is searching for a connection interrupt it
     		if (connectionThread != null && connectionThread.isAlive()) {
@@ -341,19 +612,24 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
     		
         	// close the connection with the device and stop the timers
     		// cancel the queued up port, data and keep-alive events
-    		cancelAndRemoveDataTask(true);
-    		cancelAndRemoveKeepAliveTask(true);
-    		cancelAndRemovePortTask(true);
+    		cancelWatchdog();
+    		
+    		// the outstanding commands will not be answered
+    		commandDispatcher.cancelAll();
     			
         	// change the connection status on the combo-box from 'Disconnecting' 
     		// to 'Disconnected' and make sure it is selected
         	disconnectComboBoxes("Disconnected");
             
-        	// remove the serial port event listeners and close the port
+        	// stop reading, then remove the serial port event listeners and close the port
+        	stopReading();
         	if (serialPort != null) {
                 try{
-                serialPort.removeEventListener();
-                serialPort.closePort();
+                if (eventListenerAdded) {
+                	serialPort.removeDataListener();
+                	eventListenerAdded = false;
+                }
+                serialPort.close();
                 serialPort = null;
                 } catch (Exception e){
         			e.printStackTrace();
@@ -362,69 +638,91 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
 		}
     }
 
+    /**
+     * Builds the frame for the specified command and data.
+     * @return the bytes to write to the serial port
+     */
+    byte[] encodeFrame(byte cmd, byte[] data) {
+    	// the header of the message to send
+    	byte[] header = new byte[] {
+        		(byte) ':', // Initialising character
+        		(byte) 0x00 // Device Address (unused)
+        	};
+        
+    	// the footer of the message to send
+        byte[] footer = new byte[] {
+        		(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, // Checksum
+        		(byte) '\n'   										// Terminating Character
+        	};
+        
+        // the message to be sent
+        byte[] bytes_to_send;
+        
+        // intialise the size of the message to be sent
+        if(data!=null)
+        	// 2 bytes: storing the data length and the cmd byte
+        	bytes_to_send = new byte[header.length + 2 + data.length + footer.length];
+        else 
+        	bytes_to_send = new byte[header.length + 2 + footer.length];
+        
+        int i=0;
+        // add the header
+        for(; i<header.length; i++)
+        	bytes_to_send[i] = header[i];
+        
+        // add the cmd
+        bytes_to_send[i] = cmd;
+        
+        // add the data length
+        i++;
+        if(data!=null)
+        	bytes_to_send[i] = (byte) data.length;
+        else
+        	bytes_to_send[i] = (byte) 0x00;
+        
+        // add the data
+        i++;
+        if (data != null) {	
+        	for(int j=0; j < data.length; i++, j++) {
+        		bytes_to_send[i] = data[j];
+        		
+        	}
+        }
+        
+        // add the checksum of the header, cmd, data length and data
+        if (obModelDetails.hasCheckSum()) {
+        	int checkSum = FrameDecoder.checkSum(bytes_to_send, i);
+        	for (int j=0; j < 4; j++)
+        		footer[j] = (byte) (checkSum >>> (8 * j)); // least significant byte first
+        }
+        
+        // add the footer
+        for(int j=0; j < footer.length; i++, j++) {
+        	bytes_to_send[i] = footer[j];
+        }
+        
+        return bytes_to_send;
+    }
+    
     /**
      * Method sends the specified command and data to the child in the correct format.
+     * The command is not tracked, only the CommandDispatcher sends commands so
+     * every response and error can be matched with its command.
      */
-    private void sendCommand(byte cmd, byte[] data){        
-    	// Only one thread can read or write to the serial port
-    	// at one time
-    	synchronized (COMMUNICATION_LOCK) {
-        	// the header of the message to send
-        	byte[] header = new byte[] {
-            		(byte) ':', // Initialising character
-            		(byte) 0x00 // Device Address (unused)
-            	};
-            
-        	// the footer of the message to send
-            byte[] footer = new byte[] {
-            		(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, // Checksum
-            		(byte) '\n'   										// Terminating Character
-            	};
-            
-            // the message to be sent
-            byte[] bytes_to_send;
-            
-            // intialise the size of the message to be sent
-            if(data!=null)
-            	// 2 bytes: storing the data length and the cmd byte
-            	bytes_to_send = new byte[header.length + 2 + data.length + footer.length];
-            else 
-            	bytes_to_send = new byte[header.length + 2 + footer.length];
-            
-            int i=0;
-            // add the header
-            for(; i<header.length; i++)
-            	bytes_to_send[i] = header[i];
-            
-            // add the cmd
-            bytes_to_send[i] = cmd;
-            System.out.println("snd " + cmd);
-            
-            // add the data length
-            i++;
-            if(data!=null)
-            	bytes_to_send[i] = (byte) data.length;
-            else
-            	bytes_to_send[i] = (byte) 0x00;
-            
-            // add the data
-            i++;
-            if (data != null) {	
-            	for(int j=0; j < data.length; i++, j++) {
-            		bytes_to_send[i] = data[j];
-            		
-            	}
-            }
-            
-            // add the footer
-            for(int j=0; j < footer.length; i++, j++) {
-            	bytes_to_send[i] = footer[j];
-            }
+    void sendCommand(byte cmd, byte[] data){        
+    	// the message to be sent
+    	byte[] bytes_to_send = encodeFrame(cmd, data);
+    	
+    	// Only one thread can write to the serial port at one time,
+    	// writes do not wait for the received data to be decoded
+    	synchronized (writeLock) {
+            trace.record(TraceRing.SEND, cmd, data == null ? 0 : data.length);
             
         	try {						
                 //output.write(bytes_to_send);//write it to the serial
                 //output.flush();				//refresh the serial
-        		serialPort.writeBytes(bytes_to_send);
+        		serialPort.write(bytes_to_send);
+        		lastTxTime = System.nanoTime();
                 //for (int j=0; j<bytes_to_send.length;j++)
                 	//System.out.println(bytes_to_send[j]);
             } catch (Exception e) {
@@ -436,29 +734,32 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
     /**
      * This Method is called when serial data is received.
      * 
-     * Currently only handles the SLAVE_DATA command, all other commands are discarded.
+     * All of the available bytes are read in one call and passed to the frame
+     * decoder, which calls frameDecoded for each complete frame.
      */
     public void serialEvent(SerialPortEvent oEvent) {
-    	// Only one thread can read or write to the serial port
-    	// at one time
-    	synchronized (COMMUNICATION_LOCK) {
+    	long startTime = System.nanoTime();
+    	
+    	// Only one thread can read from the serial port at one time
+    	synchronized (readLock) {
 //        	if (oEvent.getEventType() == SerialPortEvent.DATA_AVAILABLE) {
         	if (oEvent.isRXCHAR()) {
         		// restart the port timer as the connection is still alive
-        		restartPortTimeout();
+        		lastRxTime = System.nanoTime();
         		
         		try {            	
                 	// get the number of available data bytes at the input 
                 	int available = oEvent.getEventValue();
                 	if(captureData) {
-                		for(int i=0; i < available; i += readInput(available-i)) {
-                			// restart the timer as the connection is still active
-                			restartDataTimeout();
-                			restartPortTimeout();
+                		if(available > 0) {
+                			byte[] bytes = serialPort.read(available);
+                			bytesReceived(bytes, 0, bytes.length);
+                			readLatencyStats.record(System.nanoTime() - startTime, available);
                 		}
                 	} else {
                 		//flushEntireInputBuffer(available);
-                		serialPort.purgePort(SerialPort.PURGE_RXCLEAR);
+                		serialPort.purgeInput();
+                		frameDecoder.reset();
                 	}
                 } catch (Exception e) {
                 	//TODO implement fix when device is unplugged
@@ -470,220 +771,371 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
     
     
     /**
-     * Reads a single DATA_SLAVE command. This command contains a 
-     * time-stamp, voltage and current reading.
-     * @return the number of bytes read
-     * @throws IOException if it fails to read the serial data
+     * Called repeatedly by the reader thread in READER_THREAD mode.
+     * 
+     * Blocks until data is available at the serial port, then reads all of
+     * the available bytes in one call and passes them to the frame decoder.
+     * @return false when the reader thread should stop
      */
-    private int readInput(int available) throws SerialPortException {
-    	int numDataBytes;
+    boolean readSerialData() {
+    	SerialTransport port = serialPort;
+    	if (!readerRunning || port == null)
+    		return false;
     	
-    	// Read the header and the command type
-    	if (!readHeader()) {
-    		droppedBytes++;
-    		System.out.println("Failed to Read Header " + droppedBytes + " " 
-    				+ (System.currentTimeMillis()-startTime)/1e3);
-    		return 2 + available;
+    	try {
+    		// block until the first byte arrives
+    		byte[] firstByte;
+    		try {
+    			firstByte = port.read(1, READ_TIME_OUT);
+    		} catch (SerialPortTimeoutException e) {
+    			return true;
+    		}
+    		long startTime = System.nanoTime();
+    		
+    		// read the rest of the bytes that have arrived in bulk
+    		int available = port.available();
+    		byte[] bytes = available > 0 ? port.read(available) : null;
+    		
+    		// restart the port and data timers as the connection is still alive
+    		lastRxTime = System.nanoTime();
+    		
+    		synchronized (readLock) {
+    			if (captureData) {
+    				bytesReceived(firstByte, 0, 1);
+    				if (bytes != null)
+    					bytesReceived(bytes, 0, bytes.length);
+    			} else {
+    				port.purgeInput();
+    				frameDecoder.reset();
+    			}
+    		}
+    		
+    		if (captureData)
+    			readLatencyStats.record(System.nanoTime() - startTime, available + 1);
+    		return true;
+    	} catch (SerialPortException e) {
+    		// the port is closed when the reader is stopped
+    		if (readerRunning)
+    			System.err.println(e.toString());
+    		return false;
+    	}
+    }
+    
+    /**
+     * Starts reading the serial data using the selected acquisition mode.
+     */
+    private void startReading() {
+    	readLatencyStats.reset();
+    	
+    	if (acquisitionMode == AcquisitionMode.EVENT_LISTENER) {
+            // add event listeners for detecting serial data available
+            try {
+    			serialPort.addDataListener(this);
+    			eventListenerAdded = true;
+    		} catch (Exception e){
+    			e.printStackTrace();
+    		}
+    	} else {
+    		readerRunning = true;
+    		readerThread = new Thread(new SerialReaderRunnable(this), "Serial Reader");
+    		readerThread.setDaemon(true);
+    		readerThread.start();
     	}
-    	byte[] buffer=serialPort.readBytes(2);
-    	int command = buffer[0];
-    	System.out.println("rcv " + command);
-//		 read the number of data bytes to be read
-    	numDataBytes = buffer[1];
+    }
+    
+    /**
+     * Stops the reader thread and reports the read latency of the connection.
+     */
+    private void stopReading() {
+    	readerRunning = false;
+    	if (readerThread != null && readerThread != Thread.currentThread()) {
+    		try {
+    			// the reader stops after its blocking read times out
+    			readerThread.join(2 * READ_TIME_OUT);
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    		}
+    	}
+    	readerThread = null;
+    	
+    	if (readLatencyStats.getCount() > 0)
+    		System.out.println("Read latency (" + acquisitionMode + "): " + readLatencyStats);
+    }
+    
+    /**
+     * Records the bytes read from the port if a raw capture is running, then
+     * decodes them. The caller holds the read lock.
+     */
+    private void bytesReceived(byte[] bytes, int offset, int length) {
+    	RawCapture capture = rawCapture;
+    	if (capture != null) {
+    		try {
+    			capture.write(bytes, offset, length);
+    		} catch (IOException e) {
+    			System.err.println("Raw capture failed: " + e.getMessage());
+    			stopRawCapture();
+    		}
+    	}
+    	
+    	frameDecoder.decode(bytes, offset, length);
+    	
+    	// the points of every frame in the bytes are drained together
+    	publishBuffers();
+    }
+    
+    /**
+     * Starts recording every byte received from the device into a file,
+     * which can be replayed with CaptureReplay. Replaces a running capture.
+     * @param file the capture file, replaced if it exists
+     */
+    public void startRawCapture(File file) throws IOException {
+    	Integer model = obModelDetails.getModelNumber();
+    	RawCapture capture = new RawCapture(file, model == null ? 0 : model,
+    			obModelDetails.getFirmwareVersion(), binaryData);
+    	
+    	stopRawCapture();
+    	rawCapture = capture;
+    }
+    
+    /**
+     * Stops the raw capture and closes its file.
+     */
+    public void stopRawCapture() {
+    	RawCapture capture = rawCapture;
+    	rawCapture = null;
+    	if (capture == null)
+    		return;
+    	
+    	try {
+    		capture.close();
+    		System.out.println("Captured " + capture.getBytesCaptured() + " bytes to " + capture.getFile());
+    	} catch (IOException e) {
+    		System.err.println("Failed to close " + capture.getFile() + ": " + e.getMessage());
+    	}
+    }
+    
+    public boolean isRawCapturing() {
+    	return rawCapture != null;
+    }
+    
+    /**
+     * Prepares to decode the bytes of a raw capture, called by CaptureReplay.
+     * @param model the model number of the device the capture was recorded from
+     * @param firmwareVersion the firmware version of the device
+     * @param binary true if the device was streaming binary SLAVE_DATA when the capture started
+     */
+    void startReplay(int model, int firmwareVersion, boolean binary) {
+    	if (isConnected())
+    		throw new IllegalStateException("Disconnect from the device before replaying a capture");
+    	
+    	obModelDetails.changeModel(model);
+    	obModelDetails.setFirmwareVersion(firmwareVersion);
+    	synchronized (readLock) {
+    		frameDecoder.reset();
+    		sampleClock.reset();
+    		binaryData = binary;
+    	}
+    	replaying = true;
+    }
+    
+    /**
+     * Decodes bytes from a raw capture as if they had been read from the port.
+     */
+    void replayBytes(byte[] bytes, int offset, int length) {
+    	synchronized (readLock) {
+    		frameDecoder.decode(bytes, offset, length);
+    		publishBuffers();
+    	}
+    }
+    
+    /**
+     * Handles a single frame received from the device. A SLAVE_DATA frame
+     * contains a time-stamp, voltage and current reading.
+     */
+    @Override
+    public void frameDecoded(byte command, byte[] data, int length) {
+    	trace.record(TraceRing.RECEIVE, command, length);
     	switch (command) {
     	case CMD_ERROR:
-    		fillInputBuffer(numDataBytes);
-    		buffer= serialPort.readBytes(1);
-    		if((char) buffer[0] == '\n') {
-    			byte error=inputBuffer.getBytes()[0];
-    			errorHandler(error);
-    			if (numDataBytes>1)
-    				System.err.println(inputBuffer.substring(1));
-        	}
-    		// reset the inputBuffer
-        	inputBuffer = "";
-    		return 9 + numDataBytes;
+    		if(length > 0) {
+    			errorHandler(data[0]);
+    			if (length > 1)
+    				System.err.println(new String(data, 1, length - 1, StandardCharsets.US_ASCII));
+    			
+    			// retry or fail the command the error is for
+    			commandDispatcher.errorReceived(data[0]);
+    		}
+    		return;
     		
     	case SLAVE_DATA: 
-    		fillInputBuffer(numDataBytes);
-        	
-        	// read the terminating character
-    		buffer = serialPort.readBytes(1);
-    		
-    		if((char) buffer[0] == '\n') {
-        		
-        		writeBufferToDataModels();
-        		
-        	}
-        	
-        	// reset the inputBuffer
-        	inputBuffer = "";
-        	
-        	return 9 + numDataBytes;
-        	
+    		if (decodeSamples)
+    			writeBufferToDataModels(data, length);
+    		return;
+    	}
+    	
+    	// complete the command this frame is a response to
+    	boolean response = commandDispatcher.responseReceived(command, data, length);
+    	
+    	switch (command) {
     	case GET_ID:
-        	byte[] idBuffer=serialPort.readBytes(numDataBytes);
-    		// read the checksum and terminating character
-        	buffer = serialPort.readBytes(5);
-    		if((char) buffer[4] == '\n') {	
-    			ByteBuffer temp = ByteBuffer.wrap(idBuffer);
-    			temp.order(ByteOrder.LITTLE_ENDIAN);
-        		int model=temp.getInt();
-//        		int version=temp.getInt(4);
-        		obModelDetails.changeModel(model);
-        		obModelDetails.setFirmwareVersion(model);
-        	}
-    		return 9 + numDataBytes;
+    		ByteBuffer temp = ByteBuffer.wrap(data, 0, length);
+    		temp.order(ByteOrder.LITTLE_ENDIAN);
+    		int model=temp.getInt();
+    		// older firmware does not send its version
+    		int version = length >= 8 ? temp.getInt(4) : 0;
+    		obModelDetails.changeModel(model);
+    		obModelDetails.setFirmwareVersion(version);
+    		break;
     		
-    		//TODO change the below case to GET_BAUD_RATES when the firmware is fixed
-    	case 0x03:
+    	case SET_DATA_FORMAT:
+    		// the device acknowledges with the format it streams from now on,
+    		// also applied when a raw capture is replayed
+    		if (length > 0)
+    			binaryData = data[0] == DATA_FORMAT_BINARY;
+    		break;
     		
-    		fillInputBuffer(numDataBytes);
-    		buffer = serialPort.readBytes(1);
-    		if((char) buffer[0] == '\n') {	
-	        	String[] baudRates = new String[numDataBytes];
-	        	baudRates = inputBuffer.split(",");
-	        	int[] baud = new int[numDataBytes];
-//	        	int count = baudComboBox.getItemCount();
-	        	for (int i=0; i<baudRates.length; i++){
-	        		baudRates[i]=baudRates[i].trim();
-	        		baud[i] = Integer.parseInt(baudRates[i]);
-	        		System.out.println(baud[i]);
-//		        	baudComboBox.addItem(baudRates[i]);
-	        	}
-	        	baudComboBox = new JComboBox<String>(baudRates);
-//	        	for (int j=count-1; j>=0; j--){
-//	        		baudComboBox.removeItemAt(j);
-//	        		System.out.println(j);
-//	        	}
-///	        	baudComboBox.setSelectedItem(Integer.toString(dataRate));
-        	}
-        	// reset the inputBuffer
-        	inputBuffer = "";
-        	return 9 + numDataBytes;
+    	case GET_BAUD_RATES:
+    		try {
+    			updateBaudComboBox(BaudRateNegotiator.parseBaudRates(data, length));
+    		} catch (NumberFormatException e) {
+    			System.err.println("Invalid baud rate list");
+    		}
+        	break;
     		
     	case KEEP_ALIVE_CMD:
-    		serialPort.readBytes(5);
-    		return 9;
+    		break;
+    		
+    	case GET_FRAMEBUFFER:
+    		// the records requested by a chunk which has not been requested again,
+    		// the response to the record count is too short to be a record
+    		FrameBufferDownload download = frameBufferDownload;
+    		if (response && download != null)
+    			download.recordReceived(data, length);
+    		break;
     	
     	default:
-    		// reset the inputBuffer
-        	inputBuffer = "";
-        	System.out.println("help");
-    		return 4 + available;
+    		trace.record(TraceRing.UNHANDLED, command, length);
+    		break;
     	}
     }
     
-    private void fillInputBuffer(int numDataBytes) throws SerialPortException {
-    	byte[] buffer=serialPort.readBytes(numDataBytes);
-    	for(int i=0; i < numDataBytes; i++)
-    		inputBuffer += (char) buffer[i];
-    	//read and ignore the checksum
-    	serialPort.readBytes(4);
-    }
-    
     /**
      * Called when a DATA_SLAVE command has been successfully read.
      * 
      * Assumes that if the device has 4 channels it is sending 4 channels
      * of data!!!
+     * 
+     * @param data the frame data
+     * @param length the number of bytes of data
      */
-    @SuppressWarnings("deprecation")
-	private void writeBufferToDataModels() {
-    	// Contains the values for each channel in order
-    	String[] dataStrings;
-    	
-    	// The system time for when this value was received
-    	Millisecond time;
-    	
-    	// Arrays of voltage and current values for one point in time (multiple channels)
-    	ArrayList<Double> newVoltages = new ArrayList<>();
-    	ArrayList<Double> newCurrents = new ArrayList<>();
-    	
+	void writeBufferToDataModels(byte[] data, int length) {
+		// the frames after an accepted SET_SAMPLING are spaced by its period
+		applySamplingChanges();
+		writeBufferToDataModels(data, length, sampleClock, this);
+	}
+	
+	/**
+	 * Stores a SLAVE_DATA record which was not streamed, e.g. a record downloaded
+	 * from the frame buffer, in the buffers of another runnable. Called on the
+	 * serial reading thread.
+	 * @param clock spaces the records within each second of the device time stamps
+	 * @param target the runnable whose buffers the record is added to
+	 */
+	void writeBufferToDataModels(byte[] data, int length, SampleClock clock, DataRunnable target) {
     	try {
     		// used to associate electrical data type to a value
     		String[] channelFormats = obModelDetails.getChannelFormats();
-    		// data strings time stamps (2), channel data (X)
-    		dataStrings = inputBuffer.split(",");
+    		if (channelFormats != cachedChannelFormats)
+    			cacheChannelTypes(channelFormats);
+    		
+    		// time stamps (2), channel data (X)
+    		boolean parsed = binaryData ? slaveDataParser.parseBinary(data, length, channelTypes.length)
+    				: slaveDataParser.parse(data, length, channelTypes.length);
+    		if (!parsed) {
+    			ingestMetrics.parseFailed();
+    			return;
+    		}
     		
     		// use system time for time value of data point
     		//time = new Millisecond(new Date());
     		
     		// use time stamp for time value
-    		String[] currDate=dataStrings[0].split("-");
-    		String[] currTime=dataStrings[1].split(":");
-    		int year=Integer.parseInt(currDate[0]);
-    		int month=Integer.parseInt(currDate[1]);
-    		int day=Integer.parseInt(currDate[2]);
-    		int hrs=Integer.parseInt(currTime[0]);
-    		int min=Integer.parseInt(currTime[1]);
-    		int sec=Integer.parseInt(currTime[2]);
+    		long secondMillis = timestampDecoder.decode(slaveDataParser.getYear(), 
+    				slaveDataParser.getMonth(), slaveDataParser.getDay(), 
+    				slaveDataParser.getHour(), slaveDataParser.getMinute(), 
+    				slaveDataParser.getSecond());
+    		long time = clock.timeOf(secondMillis, slaveDataParser.getSequence());
     		
-    		time = new Millisecond(new Date(year,month,day,hrs,min,sec) );
-    		// start i=2 because first 2 values are time stamps
-    		int offset = 2;
-    		for(int i=offset ; i < channelFormats.length + offset; i++) {
-    			
-    			double data = Double.parseDouble(dataStrings[i]);
+    		// number of voltage and current values for this point in time (multiple channels)
+    		int numVoltages = 0;
+    		int numCurrents = 0;
+    		
+    		for(int i=0 ; i < channelTypes.length; i++) {
+    			double value = slaveDataParser.getValue(i);
     			
-    			if(channelFormats[i-offset].equals("V")) {
+    			if(channelTypes[i] == 'V') {
     				// handle addition of voltage data point
-    				newVoltages.add(data / 1e3);
-    			} else if (channelFormats[i-offset].equals("I")) {
+    				newVoltages[numVoltages++] = value / 1e3;
+    			} else if (channelTypes[i] == 'I') {
     				// handle addition of current data point
-    				newCurrents.add(data / 1e6);
-    			} else if (channelFormats[i-offset].equals("T")) {
+    				newCurrents[numCurrents++] = value / 1e6;
+    			} else if (channelTypes[i] == 'T') {
     				// handle addition of temperature data point
-    				addDataPointToBuffer(temperatureBuffers, new TimeDataPoint(time, data));
+    				addDataPointToBuffer(target.temperatureBuffers, time, value);
     			}
     		}
 	    	
     		// Check to ensure the voltage and current buffer sizes are the same.
-    		if(newVoltages.size() != newCurrents.size() && newVoltages.size() == voltageBuffers.size()) {
+    		if(numVoltages != numCurrents && numVoltages == target.voltageBuffers.size()) {
     			System.err.println("Failed to read the same number of voltage and current points");
     			System.exit(1);
     		}
     		
-    		for(int i=0; i<newVoltages.size(); i++) {
-    			double voltage = newVoltages.get(i);
-    			double current = newCurrents.get(i);
-    			
-    			voltageBuffers.get(i).offer(new TimeDataPoint(time, voltage));
-    			currentBuffers.get(i).offer(new TimeDataPoint(time, current));
-    			powerBuffers.get(i).offer(new TimeDataPoint(time, Math.abs(voltage*current)));
-    			powerBuffersCopy.get(i).offer(new TimeDataPoint(time, Math.abs(voltage*current)));
-    			if(current !=0){
-    			resistanceBuffers.get(i).offer(new TimeDataPoint(time, Math.abs(voltage/current)));
-    		 	}
-    			else{
-    				resistanceBuffers.get(i).offer(new TimeDataPoint(time, 0));
-    			}
+    		for(int i=0; i<numVoltages; i++) {
+    			// the power, resistance and energy are derived in batches, the
+    			// points are published once the bytes being decoded are done
+    			target.addVoltageAndCurrent(i, time, newVoltages[i], newCurrents[i]);
     		}
     	
-    	} catch (NumberFormatException e) {
-    		//System.err.println("Failed to parse current and/or voltage.");
-    		//e.printStackTrace();
     	} catch (ArrayIndexOutOfBoundsException e) {
     		//System.err.println("Serial input is NOT correct length.");
+    		ingestMetrics.parseFailed();
     	} catch (NullPointerException e){
+    		ingestMetrics.parseFailed();
     		e.printStackTrace();
     	}
     }
     
+    /**
+     * Stores the first character of each channel format so the channel type
+     * can be found without String comparisons for each frame.
+     * @param channelFormats the channel formats of the connected device
+     */
+    private void cacheChannelTypes(String[] channelFormats) {
+    	channelTypes = new char[channelFormats.length];
+    	for(int i=0; i<channelFormats.length; i++)
+    		channelTypes[i] = channelFormats[i].charAt(0);
+    	
+    	newVoltages = new double[channelFormats.length];
+    	newCurrents = new double[channelFormats.length];
+    	cachedChannelFormats = channelFormats;
+    }
+    
     /**
      * Adds a data point to the channel buffers in order.
      * Assumes that data is always being received for all channels!!
      * 
      * @param channelBuffers contains a list of channel buffers
-     * @param dataPoint the data point to be added
+     * @param time the time of the data point (Epoch milliseconds)
+     * @param value the value of the data point
      */
-    private void addDataPointToBuffer(ArrayList<LinkedBlockingQueue<TimeDataPoint>> channelBuffers,
-    		TimeDataPoint dataPoint) {
+    private void addDataPointToBuffer(ArrayList<ChannelBuffer> channelBuffers,
+    		long time, double value) {
     	int i;
 		for(i=0; i < channelBuffers.size(); i++)
-			if(i == channelBuffers.get(i).size() - 1 ||
-					channelBuffers.get(i).size() == channelBuffers.get(i+1).size()) {
-				channelBuffers.get(i).offer(dataPoint);
+			if(i == channelBuffers.get(i).writtenSize() - 1 ||
+					channelBuffers.get(i).writtenSize() == channelBuffers.get(i+1).writtenSize()) {
+				channelBuffers.get(i).add(time, value);
 				break;
 			}
     }
@@ -709,54 +1161,19 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
     	return new Second(second,minute,hour,day,month,year);
     } */
     
-    /**
-     * The header is standard for all devices.
-     * @return
-     * @throws IOException
-     */
-    private boolean readHeader() throws SerialPortException {
-    	byte[] buffer=null;
-		buffer = serialPort.readBytes(2);
-    	int startByte = buffer[0];
-    	int addrByte = buffer[1];
-    	
-    	//System.out.println((char) startByte + " " + (char) addrByte);
-    	return ':' == startByte && addrByte == 1;
-    }
-    
-    
     public void flushInputBuffer() {
     	try {
-			//flushInputBuffer(input.available());
     		flushEntireInputBuffer();
 		} catch (SerialPortException e) {
 			e.printStackTrace();
 		}
     }
     
-    /**
-     * 
-     * @param available the number of bytes available at the serial as of last check
-     * @return the number of bytes flushed from the input buffer.
-     */
-    private int flushInputBuffer(int available) {
-    	synchronized (COMMUNICATION_LOCK) {
-        	int count = 0;
-        	try {
-    			while(available>0 && input.read()!='\n') {
-    				available--;
-    				count++;
-    			}
-    		} catch (IOException e) {
-    			System.err.println("Failed to flush input buffer.");
-    		}
-        	
-        	return count;
-		}
-    }
-    
     private void flushEntireInputBuffer() throws SerialPortException {
-    	serialPort.purgePort(SerialPort.PURGE_RXCLEAR);
+    	synchronized (readLock) {
+    		serialPort.purgeInput();
+    		frameDecoder.reset();
+    	}
     }
     
     /**
@@ -764,7 +1181,7 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
      */
     
     public void getID(){
-    	sendCommand((byte) GET_ID,null);
+    	commandDispatcher.submit(GET_ID, null, true);
     }
     
     /** 
@@ -772,6 +1189,11 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
      */
     
     private void errorHandler(byte error){
+    	ingestMetrics.deviceError(error);
+    	trace.record(TraceRing.DEVICE_ERROR, CMD_ERROR, error & 0xFF);
+    	if (trace.isEnabled())
+    		trace.dump(System.err);
+    	
     	switch (error){
     	case ERR_INVALID_DATA:
     		System.err.println("The previous packet contained invalid data for the command");
@@ -808,8 +1230,9 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
     
     /**
      * setDate sets the date and time of the connected device to the system date and time
+     * @return completes when the device has responded
      */
-    public void setDate(){
+    public Future<byte[]> setDate(){
     	byte [] date_array = new byte[7];
     	date_array[1]=(byte) ((Calendar.getInstance().get(Calendar.YEAR))>>8);
     	date_array[0]=(byte) (Calendar.getInstance().get(Calendar.YEAR));
@@ -818,22 +1241,23 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
     	date_array[4]=(byte) (Calendar.getInstance().get(Calendar.HOUR_OF_DAY));
     	date_array[5]=(byte) (Calendar.getInstance().get(Calendar.MINUTE));
     	date_array[6]=(byte) (Calendar.getInstance().get(Calendar.SECOND));
-    	sendCommand((byte) SET_DATE_TIME,date_array);
-    	
+    	return commandDispatcher.submit((byte) SET_DATE_TIME,date_array, true);
     }
     
     /**
      * getBaudRates requests the connected device to list all of its compatible data rates
+     * @return completes with the device's list of data rates
      */
-    public void getBaudRates(){
-    	sendCommand( (byte) GET_BAUD_RATES,null);
+    public Future<byte[]> getBaudRates(){
+    	return commandDispatcher.submit( (byte) GET_BAUD_RATES,null, true);
     }
     
     /**
-     * getBaudRates requests the connected device to list all of its compatible data rates
+     * getSampling requests the sampling configuration of the connected device
+     * @return completes with the device's sampling configuration
      */
-    public void getSampling(){
-    	sendCommand( (byte) GET_SAMPLING,null);
+    public Future<byte[]> getSampling(){
+    	return commandDispatcher.submit( (byte) GET_SAMPLING,null, true);
     }
     
     /* Listener methods */
@@ -867,39 +1291,152 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
     		}
     		
     		if(samplingChange) {
-    			// array of data bytes
-    			byte[] data = new byte[14];
-    			
-    			// sampling period (in ms)
-    			int samplingPeriod = getSamplingPeriod();
-    			
-    			// Continuous sampling
-    			data[0] = 0x01;
-    			
-    			// Sampling rate
-    			for(int i=4, j=1 ; i>=1 ; i--, j++) {
-    				data[i] = (byte)(samplingPeriod >>> 8*(i-1)); 
-    				
-    			}
-    			
-    			System.out.println(data[1] + " " + data[2] + " " + data[3] + " " + data[4] );
-    			// Alarm type (no alarm)
-    			data[5] = 0x00;
-    			
-    			// Number of samples sent after alarm triggered (does NOT matter)
-    			data[6] = 0x00; data[7] = 0x00;
-    			data[8] = 0x00; data[9] = 0x00;
-    			
-    			// The alarm mask (all alarms are off)
-    			data[10] = 0x00; data[11] = 0x00;
-    			data[12] = 0x00; data[13] = 0x00;
-    			
     			// send a command to the slaved device to change the sampling rate
-    			sendCommand(SET_SAMPLING, data);
+    			setSamplingPeriod(getSamplingPeriod(), true);
     		}
     	}
 	}
     
+    /**
+     * Sets the device to sample continuously at the sampling period. The
+     * frames are spaced by the new period, and the menu shows it, once the
+     * device has accepted it.
+     * @param samplingPeriod the sampling period (Milliseconds)
+     * @param selected true if the period was selected from the menu, false for the back-off
+     */
+    private Future<byte[]> setSamplingPeriod(int samplingPeriod, boolean selected) {
+    	// array of data bytes
+    	byte[] data = new byte[14];
+    	
+    	// Continuous sampling
+    	data[0] = 0x01;
+    	
+    	// Sampling rate
+    	for(int i=4, j=1 ; i>=1 ; i--, j++) {
+    		data[i] = (byte)(samplingPeriod >>> 8*(i-1)); 
+    		
+    	}
+    	
+    	// Alarm type (no alarm)
+    	data[5] = 0x00;
+    	
+    	// Number of samples sent after alarm triggered (does NOT matter)
+    	data[6] = 0x00; data[7] = 0x00;
+    	data[8] = 0x00; data[9] = 0x00;
+    	
+    	// The alarm mask (all alarms are off)
+    	data[10] = 0x00; data[11] = 0x00;
+    	data[12] = 0x00; data[13] = 0x00;
+    	
+    	synchronized (samplingChanges) {
+    		Future<byte[]> response = commandDispatcher.submit(SET_SAMPLING, data, true);
+    		samplingChanges.add(new SamplingChange(response, samplingPeriod, selected));
+    		return response;
+    	}
+    }
+    
+    /**
+     * Applies the sampling periods the device has accepted, in the order they
+     * were sent. Called on the thread reading the serial port before each
+     * frame, as the device acknowledges the command before it samples at the
+     * new period, and by the watchdog.
+     */
+    private void applySamplingChanges() {
+    	synchronized (samplingChanges) {
+    		SamplingChange change;
+    		while ((change = samplingChanges.peek()) != null && change.response.isDone()) {
+    			samplingChanges.poll();
+    			try {
+    				change.response.get();
+    				sampleClock.setSamplingPeriod(change.samplingPeriod);
+    				if (change.selected)
+    					selectedSamplingPeriod = change.samplingPeriod;
+    			} catch (InterruptedException | ExecutionException | CancellationException e) {
+    				System.err.println("The device did not accept a sampling period of "
+    						+ change.samplingPeriod + " ms");
+    			}
+    			
+    			// the menu shows the period the device is sampling at
+    			final int samplingPeriod = sampleClock.getSamplingPeriod();
+    			SwingUtilities.invokeLater(new Runnable() {
+    				@Override
+    				public void run() {
+    					selectSamplingPeriod(samplingPeriod);
+    				}
+    			});
+    		}
+    	}
+    }
+    
+    /**
+     * Steps the device's sampling rate down to the next slower menu period
+     * while the channel buffers are not being drained fast enough, and back
+     * up towards the selected period once they have been drained, at most
+     * once every RATE_BACKOFF_PERIOD. Called by the watchdog.
+     */
+    private void backOffSamplingRate() {
+    	long now = System.nanoTime();
+    	if (now - nextRateBackoff < 0 || !isConnected())
+    		return;
+    	synchronized (samplingChanges) {
+    		if (!samplingChanges.isEmpty())
+    			return;
+    	}
+    	
+    	int samplingPeriod = sampleClock.getSamplingPeriod();
+    	int newPeriod;
+    	if (isAboveHighWatermark()) {
+    		newPeriod = nextSamplingPeriod(samplingPeriod, true);
+    		if (newPeriod == samplingPeriod)
+    			return;
+    		System.err.println("Channel buffers are full, lowering the sampling rate to one sample every "
+    				+ newPeriod + " ms");
+    	} else if (samplingPeriod > selectedSamplingPeriod) {
+    		newPeriod = Math.max(nextSamplingPeriod(samplingPeriod, false), selectedSamplingPeriod);
+    		System.err.println("Channel buffers have been drained, raising the sampling rate to one sample every "
+    				+ newPeriod + " ms");
+    	} else {
+    		return;
+    	}
+    	
+    	nextRateBackoff = now + TimeUnit.MILLISECONDS.toNanos(RATE_BACKOFF_PERIOD);
+    	setSamplingPeriod(newPeriod, false);
+    }
+    
+    /**
+     * @param slower true for the next slower period, false for the next faster one
+     * @return the menu period next to the sampling period, or the sampling
+     *         period if there is none
+     */
+    private static int nextSamplingPeriod(int samplingPeriod, boolean slower) {
+    	if (slower) {
+    		for (int period : SAMPLING_PERIODS)
+    			if (period > samplingPeriod)
+    				return period;
+    	} else {
+    		for (int i = SAMPLING_PERIODS.length - 1; i >= 0; i--)
+    			if (SAMPLING_PERIODS[i] < samplingPeriod)
+    				return SAMPLING_PERIODS[i];
+    	}
+    	return samplingPeriod;
+    }
+    
+    /**
+     * @param rateBackoff true to ask the device to sample more slowly when the channel buffers fill up
+     */
+    public void setRateBackoff(boolean rateBackoff) {
+    	this.rateBackoff = rateBackoff;
+    }
+    
+    /**
+     * @param decodeSamples false to leave the channel buffers empty, e.g. when
+     *        the data is only recorded by a raw capture. The responses to the
+     *        commands are still decoded.
+     */
+    public void setDecodeSamples(boolean decodeSamples) {
+    	this.decodeSamples = decodeSamples;
+    }
+    
     /* Listener Helpers */
     
     /**
@@ -912,13 +1449,12 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
     	if(button.getActionCommand().equals("Stop Capture")) {
     		captureData = false;
     		
-    		// stop the data timer task as the capture of data has been halted
-    		cancelAndRemoveDataTask(false);
+    		// the data timer is not checked while the capture of data is halted
     	} else if(button.getActionCommand().equals("Start-Pause Capture")) {
 			captureData = true;
 			
 			// data is being captured again so start the data timer
-			restartDataTimeout();
+			lastDataFlushTime = System.nanoTime();
     	}
 
     }
@@ -967,21 +1503,217 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
     
     
     /**
-     * Change the baud rate to match the users selection.
-     * @param selection
+     * Asks the device to change its baud rate, and changes the rate of the
+     * serial port to match once the device has accepted it.
+     * @param rate the new baud rate
+     * @return true if the baud rate was changed
      */
-    private void handleBaudSelection(String selection) {
-    	dataRate = Integer.parseInt(selection);
+    boolean changeBaudRate(int rate) {
     	byte[] data = new byte[4];
     	for(int i=0; i<=3 ; i++) {
-			data[i] = (byte)(dataRate >>> 8*(i)); 
+			data[i] = (byte)(rate >>> 8*(i)); 
 		}
     	
-    	sendCommand(SET_BAUD_RATE, data); 
-    	close();
+    	try {
+    		// not retried, the device may have switched rate before the response was lost
+    		commandDispatcher.submit(SET_BAUD_RATE, data, false).get();
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		return false;
+    	} catch (ExecutionException | CancellationException e) {
+    		System.err.println("Failed to change the baud rate to " + rate + ": " + e.getMessage());
+    		return false;
+    	}
+    	
+    	return setPortBaudRate(rate);
+    }
+    
+    /**
+     * Changes the baud rate of the serial port without telling the device.
+     * @return true if the baud rate was changed
+     */
+    boolean setPortBaudRate(int rate) {
+    	synchronized (writeLock) {
+    		if (serialPort == null)
+    			return false;
+    		try {
+    			serialPort.setBaudRate(rate);
+    			dataRate = rate;
+    			return true;
+    		} catch (SerialPortException e) {
+    			System.err.println(e.toString());
+    			return false;
+    		}
+    	}
+    }
+    
+    /**
+     * @return the counters for the bytes, frames and errors received from the device
+     */
+    public IngestMetrics getIngestMetrics() {
+    	return ingestMetrics;
+    }
+    
+    /**
+     * @return the trace of the frames sent and received, disabled by default
+     */
+    public TraceRing getTrace() {
+    	return trace;
+    }
+    
+    /**
+     * @return the number of commands waiting for a response from the device
+     */
+    public int getPendingCommandCount() {
+    	return commandDispatcher.getPendingCount();
+    }
+    
+    long getLinkErrors() {
+    	return frameDecoder.getDroppedBytes() + frameDecoder.getCheckSumErrors();
+    }
+    
+    /**
+     * Downloads the records stored on the device in the background. The
+     * records are kept apart from the streamed data and saved to a .csv file,
+     * in the order they were recorded.
+     * @param parent the component the download progress is displayed over
+     * @param file the .csv file the records are saved to
+     */
+    public void startFrameBufferDownload(Component parent, File file) {
+    	if (serialPort == null || frameBufferDownload != null)
+    		return;
+    	
+    	ProgressMonitor progressMonitor = new ProgressMonitor(parent, 
+    			"Downloading the records stored on the device", "", 0, 1);
+    	frameBufferDownload = new FrameBufferDownload(this, progressMonitor, file);
+    	new Thread(frameBufferDownload, "Frame Buffer Download").start();
+    }
+    
+    void frameBufferDownloadFinished(FrameBufferDownload download) {
+    	if (frameBufferDownload == download)
+    		frameBufferDownload = null;
+    }
+    
+    /**
+     * Asks the device to stream SLAVE_DATA in the binary format if its firmware
+     * supports it. Older firmware keeps streaming ASCII, as does a device which
+     * refuses the command. The format used is switched when the acknowledgement
+     * is received, so no frame is parsed with the wrong format.
+     */
+    private void negotiateDataFormat() {
+    	if (!obModelDetails.hasBinaryData())
+    		return;
+    	
+    	try {
+    		submitCommand(SET_DATA_FORMAT, new byte[] {DATA_FORMAT_BINARY}, true).get();
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	} catch (ExecutionException | CancellationException e) {
+    		System.err.println("Binary data format was refused, using ASCII");
+    	}
+    }
+    
+    /**
+     * @return true if the device streams SLAVE_DATA in the binary format
+     */
+    public boolean isBinaryData() {
+    	return binaryData;
+    }
+    
+    /**
+     * Sends a command to the device, the returned Future completes with the response data.
+     * @param retry true if the command can be sent again when it fails
+     */
+    Future<byte[]> submitCommand(byte cmd, byte[] data, boolean retry) {
+    	return commandDispatcher.submit(cmd, data, retry);
+    }
+    
+    /**
+     * Sends a command which the device answers with several frames.
+     * @see CommandDispatcher#submitStreamed
+     */
+    Future<byte[]> submitStreamedCommand(byte cmd, byte[] data, int responseFrames, int timeout) {
+    	return commandDispatcher.submitStreamed(cmd, data, responseFrames, timeout);
+    }
+    
+    int getDataRate() {
+    	return dataRate;
+    }
+    
+    int getMaxBaudRate() {
+    	return obModelDetails.getMaxBaudRate();
+    }
+    
+    /**
+     * Used to connect to devices through a transport other than a jssc
+     * serial port, e.g. the loopback device. Takes effect on the next connection.
+     */
+    public void setTransportFactory(SerialTransportFactory transportFactory) {
+    	this.transportFactory = transportFactory;
+    }
+    
+    /**
+     * Change the baud rate to match the users selection.
+     * @param selection
+     */
+    private void handleBaudSelection(String selection) {
+    	if (updatingBaudComboBox || selection == null)
+    		return;
+    	
+    	final int rate = Integer.parseInt(selection);
+    	if (rate == dataRate || serialPort == null)
+    		return;
+    	
+    	// wait for the device to accept the rate off the event dispatch thread
+    	new Thread(new Runnable() {
+			@Override
+			public void run() {
+				if (!changeBaudRate(rate))
+					selectBaudRate(dataRate);
+			}
+		}, "Baud Rate Change").start();
+    }
+    
+    /**
+     * Replaces the choices of the baud rate combo-box with the rates listed by the device.
+     */
+    private void updateBaudComboBox(int[] deviceRates) {
+    	if (baudComboBox == null)
+    		return;
+    	final int[] rates = deviceRates.clone();
+    	Arrays.sort(rates);
+    	SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				updatingBaudComboBox = true;
+				baudComboBox.removeAllItems();
+				for (int i = rates.length - 1; i >= 0; i--)
+					baudComboBox.addItem(Integer.toString(rates[i]));
+				baudComboBox.setSelectedItem(Integer.toString(dataRate));
+				updatingBaudComboBox = false;
+			}
+		});
+    }
+    
+    /**
+     * Shows the baud rate in use in the baud rate combo-box.
+     */
+    private void selectBaudRate(final int rate) {
+    	if (baudComboBox == null)
+    		return;
+    	SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				updatingBaudComboBox = true;
+				baudComboBox.setSelectedItem(Integer.toString(rate));
+				updatingBaudComboBox = false;
+			}
+		});
     }
     
     private void disconnectComboBoxes(String newString) {
+    	if (connectComboBox == null)
+    		return;
     	connectComboBox.setSelectedIndex(1);
     	StringBuffer selectedItem = (StringBuffer) connectComboBox.getSelectedItem();
     	selectedItem.delete(0, selectedItem.length());
@@ -989,6 +1721,8 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
     }
     
     private void connectComboBoxes(String newString) {
+    	if (connectComboBox == null)
+    		return;
     	connectComboBox.setSelectedIndex(0);
     	StringBuffer selectedItem = (StringBuffer) connectComboBox.getSelectedItem();
     	selectedItem.delete(0, selectedItem.length());
@@ -1002,59 +1736,145 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
     }
     
     public boolean isRunning() {
-    	return running;
+    	return running || replaying;
+    }
+    
+    /**
+     * @return true if the device has been found and its port is open
+     */
+    public boolean isConnected() {
+    	return serialPort != null;
+    }
+    
+    /**
+     * Closes the connection and stops the timer and probe threads, the
+     * runnable can not be used again.
+     */
+    public void dispose() {
+    	stopRawCapture();
+    	close();
+    	ex.shutdownNow();
+    	probeExecutor.shutdownNow();
+    	obModelDetails.deleteObserver(this);
     }
     
     /* Functions used to send commands to the slaved device */
     
     public void sendKeepAliveCMD() {
-    	sendCommand(KEEP_ALIVE_CMD, null);
+    	// a lost keep-alive is not sent again, the next one is due soon
+    	commandDispatcher.submit(KEEP_ALIVE_CMD, null, false);
     }
     
     /* Functions used to handle the timers */
 
-    private void cancelAndRemovePortTask(boolean interrupt) {
-    	if(portTimeoutTask != null)
-    		portTimeoutTask.cancel(interrupt);
+    /**
+     * Called periodically by the watchdog timer. Compares the time of the last
+     * data received from and sent to the device against the port, data and
+     * keep-alive deadlines, so nothing needs to be rescheduled as data arrives.
+     */
+    void checkTimeouts() {
+    	long now = System.nanoTime();
+    	long sinceRx = now - lastRxTime;
+    	
+    	if (sinceRx > TimeUnit.MILLISECONDS.toNanos(PORT_TIME_OUT)) {
+    		// the connection has been lost, start looking for the device again
+    		connectionLost();
+    		return;
+    	}
+    	
+    	if (captureData && now - Math.max(lastRxTime, lastDataFlushTime) 
+    			> TimeUnit.MILLISECONDS.toNanos(DATA_TIME_OUT)) {
+    		// no data has been captured, clear the partially received data
+    		lastDataFlushTime = now;
+    		flushInputBuffer();
+    	}
+    	
+    	// only keep the connection alive when there is no other traffic
+    	long keepAliveTimeOut = TimeUnit.MILLISECONDS.toNanos(KEEP_ALIVE_TIME_OUT);
+    	if (sinceRx > keepAliveTimeOut && now - lastTxTime > keepAliveTimeOut)
+    		sendKeepAliveCMD();
+    	
+    	// slow the device down rather than keep overflowing the buffers, the
+    	// change is also applied here in case the device now streams slowly
+    	applySamplingChanges();
+    	if (rateBackoff)
+    		backOffSamplingRate();
     }
     
-    private void cancelAndRemoveDataTask(boolean interrupt) {
-    	if(dataTimeoutTask != null)
-    		dataTimeoutTask.cancel(interrupt);
+    /**
+     * Closes the port and starts reconnecting. The session is kept so the
+     * data from before and after the gap stays in the same series.
+     */
+    private void connectionLost() {
+    	connectionLostTime = System.currentTimeMillis()
+    			- TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastRxTime);
+    	close();
+    	
+    	// the disconnected option is already selected, only its text changes
+    	reconnecting = lastPortName != null;
+    	if (reconnecting)
+    		disconnectComboBoxes("Reconnecting...");
+    	startConnectionThread();
     }
     
-    private void cancelAndRemoveKeepAliveTask(boolean interrupt) {
-    	if(keepAliveTimeoutTask != null)
-    		keepAliveTimeoutTask.cancel(interrupt);
+    /**
+     * @return the periods without data caused by lost connections, each
+     *         {lost, reconnected} in epoch milliseconds, oldest first
+     */
+    public List<long[]> getConnectionGaps() {
+    	synchronized (connectionGaps) {
+    		return new ArrayList<>(connectionGaps);
+    	}
     }
     
-    private void restartPortTimeout() {
-    	if(portTimeoutTask != null)
-    		portTimeoutTask.cancel(true);
-    	
-    	
-    	portTimeoutTask = ex.scheduleAtFixedRate(new PortTimeoutRunnable(this),
-    			PORT_TIME_OUT, PORT_TIME_OUT, TimeUnit.MILLISECONDS);
+    private void cancelWatchdog() {
+    	if(watchdogTask != null)
+    		watchdogTask.cancel(false);
     }
     
-    private void restartDataTimeout() {
-    	if(dataTimeoutTask != null)
-    		dataTimeoutTask.cancel(true);
+    /**
+     * Restarts the port, data and keep-alive deadlines and makes sure the
+     * watchdog timer is running.
+     */
+    private void restartWatchdog() {
+    	restartPortTimeout();
+    	lastTxTime = lastRxTime;
+    	lastDataFlushTime = lastRxTime;
     	
-    	dataTimeoutTask = ex.scheduleAtFixedRate(new DataTimeoutRunnable(this),
-    			DATA_TIME_OUT, DATA_TIME_OUT, TimeUnit.MILLISECONDS);
-	}
+    	if(watchdogTask == null || watchdogTask.isDone())
+    		watchdogTask = ex.scheduleAtFixedRate(new WatchdogRunnable(this),
+    				WATCHDOG_PERIOD, WATCHDOG_PERIOD, TimeUnit.MILLISECONDS);
+    }
     
-    private void restartKeepaliveTimeout() {
-    	if(keepAliveTimeoutTask != null)
-    		keepAliveTimeoutTask.cancel(true);
-    	
-    	keepAliveTimeoutTask = ex.scheduleAtFixedRate(new KeepAliveTimeoutRunnable(this),
-    			KEEP_ALIVE_TIME_OUT, KEEP_ALIVE_TIME_OUT, TimeUnit.MILLISECONDS);
-	}
+    /**
+     * Restarts the port time out, used while searching for the device.
+     */
+    private void restartPortTimeout() {
+    	lastRxTime = System.nanoTime();
+    }
     
     /* Getters and Setters */
     
+    /**
+     * Selects how the serial data is read, takes effect on the next connection.
+     * @param acquisitionMode
+     */
+    public synchronized void setAcquisitionMode(AcquisitionMode acquisitionMode) {
+    	this.acquisitionMode = acquisitionMode;
+    }
+    
+    public AcquisitionMode getAcquisitionMode() {
+    	return acquisitionMode;
+    }
+    
+    /**
+     * Used to compare the read latency of the acquisition modes.
+     * @return the read latency statistics of the current connection
+     */
+    public ReadLatencyStats getReadLatencyStats() {
+    	return readLatencyStats;
+    }
+    
     /**
      * 
      * @param connectStrings the connect and disconnect JComboBox options 
@@ -1078,53 +1898,54 @@ public class SerialCommsRunnable extends DataRunnable implements SerialPortEvent
     public synchronized void setBaudComboBox(JComboBox<String> baudComboBox) {
     	this.baudComboBox = baudComboBox;
     }
+    
+    /** A SET_SAMPLING command and the period it asks the device for */
+    private static class SamplingChange {
+    	final Future<byte[]> response;
+    	final int samplingPeriod;
+    	final boolean selected;
+    	
+    	SamplingChange(Future<byte[]> response, int samplingPeriod, boolean selected) {
+    		this.response = response;
+    		this.samplingPeriod = samplingPeriod;
+    		this.selected = selected;
+    	}
+    }
 }
 
 
-class PortTimeoutRunnable implements Runnable {
+class WatchdogRunnable implements Runnable {
 	
 	private SerialCommsRunnable serialCommsRunner;
 
-	public PortTimeoutRunnable(SerialCommsRunnable serialCommsRunner) {
+	public WatchdogRunnable(SerialCommsRunnable serialCommsRunner) {
 		this.serialCommsRunner = serialCommsRunner;
 	}
 	
 	@Override
 	public void run() {
-		serialCommsRunner.close();
-		serialCommsRunner.startConnectionThread();
-	}
-
-}
-
-class DataTimeoutRunnable implements Runnable {
-
-	private SerialCommsRunnable serialCommsRunner;
-
-	public DataTimeoutRunnable(SerialCommsRunnable serialCommsRunner) {
-		this.serialCommsRunner = serialCommsRunner;
-	}
-	
-	@Override
-	public void run() {
-		serialCommsRunner.flushInputBuffer();
-		
+		try {
+			serialCommsRunner.checkTimeouts();
+		} catch (RuntimeException e) {
+			// an exception would stop the watchdog from being run again
+			e.printStackTrace();
+		}
 	}
 	
 }
 
 
-class KeepAliveTimeoutRunnable implements Runnable {
+class SerialReaderRunnable implements Runnable {
 	
 	private SerialCommsRunnable serialCommsRunner;
 
-	public KeepAliveTimeoutRunnable(SerialCommsRunnable serialCommsRunner) {
+	public SerialReaderRunnable(SerialCommsRunnable serialCommsRunner) {
 		this.serialCommsRunner = serialCommsRunner;
 	}
 	
 	@Override
 	public void run() {
-		serialCommsRunner.sendKeepAliveCMD();
+		while (serialCommsRunner.readSerialData());
 	}
 	
 }
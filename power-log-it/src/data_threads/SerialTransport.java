@@ -0,0 +1,62 @@
+package data_threads;
+
+import jssc.SerialPortEventListener;
+import jssc.SerialPortException;
+import jssc.SerialPortTimeoutException;
+
+/**
+ * The serial link to a device. The jssc serial port is used by default, the
+ * loopback device can be used instead to run the acquisition pipeline
+ * without hardware.
+ *
+ * Failures are reported with the jssc exception types whichever transport
+ * is used.
+ */
+public interface SerialTransport {
+
+	/**
+	 * @return the name of the port, e.g. COM3
+	 */
+	String getPortName();
+
+	/**
+	 * Opens the port with 8 data bits, 1 stop bit and no parity.
+	 */
+	void open(int baudRate) throws SerialPortException;
+
+	void setBaudRate(int baudRate) throws SerialPortException;
+
+	void write(byte[] bytes) throws SerialPortException;
+
+	/**
+	 * Blocks until the bytes have been received.
+	 */
+	byte[] read(int byteCount) throws SerialPortException;
+
+	/**
+	 * Blocks until the bytes have been received or the time out expires.
+	 * @param timeout the time out in milliseconds
+	 */
+	byte[] read(int byteCount, int timeout) throws SerialPortException, SerialPortTimeoutException;
+
+	/**
+	 * @return the number of bytes which can be read without blocking
+	 */
+	int available() throws SerialPortException;
+
+	/**
+	 * Throws away the bytes which have been received and not yet read.
+	 */
+	void purgeInput() throws SerialPortException;
+
+	/**
+	 * The listener is called with an RXCHAR event when bytes are received.
+	 */
+	void addDataListener(SerialPortEventListener listener) throws SerialPortException;
+
+	void removeDataListener() throws SerialPortException;
+
+	boolean isOpen();
+
+	void close() throws SerialPortException;
+}
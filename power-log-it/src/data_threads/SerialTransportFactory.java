@@ -0,0 +1,17 @@
+package data_threads;
+
+/**
+ * Lists the ports a device may be connected to and creates their transports.
+ */
+public interface SerialTransportFactory {
+
+	/**
+	 * @return the names of the ports which are currently attached
+	 */
+	String[] getPortNames();
+
+	/**
+	 * @return an unopened transport for the port
+	 */
+	SerialTransport create(String portName);
+}
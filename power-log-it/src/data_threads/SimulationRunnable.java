@@ -3,16 +3,12 @@ package data_threads;
 import java.awt.Button;
 import java.awt.Event;
 import java.awt.event.ActionEvent;
-import java.util.Date;
 
 import javax.swing.JButton;
 import javax.swing.JComboBox;
 import javax.swing.JMenuBar;
 
-import org.jfree.data.time.Millisecond;
-
 import model.ObservableModelDetails;
-import model.TimeDataPoint;
 
 public class SimulationRunnable extends DataRunnable {
 	
@@ -56,8 +52,8 @@ public class SimulationRunnable extends DataRunnable {
 	
 	private void generateDataPoint() {
 		// use system time for time value of data point
-		Millisecond time = new Millisecond(new Date());
-		double t = time.getMiddleMillisecond() / 1e5;
+		long time = System.currentTimeMillis();
+		double t = time / 1e5;
 		
 		//System.out.println(t);
 		
@@ -69,11 +65,8 @@ public class SimulationRunnable extends DataRunnable {
 		
 		//System.out.println(voltage);
 		
-		voltageBuffers.get(0).offer(new TimeDataPoint(time, voltage));
-		currentBuffers.get(0).offer(new TimeDataPoint(time, current));
-		powerBuffers.get(0).offer(new TimeDataPoint(time, voltage*current));
-		powerBuffersCopy.get(0).offer(new TimeDataPoint(time, voltage*current));
-		resistanceBuffers.get(0).offer(new TimeDataPoint(time, voltage/current));
+		addVoltageAndCurrent(0, time, voltage, current);
+		publishBuffers();
 	}
 	
 	
@@ -99,6 +92,15 @@ public class SimulationRunnable extends DataRunnable {
 			simulationThread.interrupt();
 	}
 	
+	/**
+	 * The simulated power and resistance are voltage*current and voltage/current,
+	 * without taking their magnitudes.
+	 */
+	@Override
+	boolean derivesMagnitudes() {
+		return false;
+	}
+	
 	/* Inherited abstract methods */
 	
 	public boolean isRunning() {
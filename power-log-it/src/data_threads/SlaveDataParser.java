@@ -0,0 +1,242 @@
+package data_threads;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Parses the data of a SLAVE_DATA frame without creating any intermediate
+ * Strings or boxed values.
+ *
+ * ASCII format: yyyy-mm-dd,hh:mm:ss,value,value,...
+ *
+ * Binary format, little-endian with fixed width fields:
+ * year (2) | month (1) | day (1) | hour (1) | minute (1) | second (1) |
+ * sequence (1) | value (4, signed) | value (4, signed) | ...
+ *
+ * The binary values are integers in the same units as the ASCII values, and
+ * the sequence number counts the frames sent by the device, wrapping at 256.
+ *
+ * The parsed fields are stored in this object and are overwritten by the
+ * next call to parse, so a single parser is reused for every frame.
+ */
+class SlaveDataParser {
+	/** Powers of 10 used to scale the fractional digits of a value */
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+		1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+	};
+
+	/** Size of the binary time stamp and sequence number */
+	private static final int BINARY_HEADER_LENGTH = 8;
+
+	/** Size of each binary channel value */
+	private static final int BINARY_VALUE_LENGTH = 4;
+
+	/** The time stamp fields of the last parsed frame */
+	private int year;
+	private int month;
+	private int day;
+	private int hour;
+	private int minute;
+	private int second;
+
+	/** The sequence number of the last binary frame, -1 for an ASCII frame */
+	private int sequence;
+
+	/** The channel values of the last parsed frame */
+	private double[] values = new double[0];
+
+	/** Index of the next byte to be parsed */
+	private int pos;
+
+	/** Set when a field could not be parsed */
+	private boolean failed;
+
+	/** Little-endian view of the frame data array, which is reused for every frame */
+	private ByteBuffer binaryData;
+
+	/**
+	 * Parses the data of a SLAVE_DATA frame.
+	 * @param data the frame data
+	 * @param length the number of bytes of data
+	 * @param numChannels the number of channel values expected after the time stamp
+	 * @return true if the time stamp and all the channel values were parsed
+	 */
+	boolean parse(byte[] data, int length, int numChannels) {
+		if (values.length < numChannels)
+			values = new double[numChannels];
+
+		pos = 0;
+		failed = false;
+		sequence = -1;
+
+		// date stamp: yyyy-mm-dd
+		year = parseInt(data, length, '-');
+		month = parseInt(data, length, '-');
+		day = parseInt(data, length, ',');
+
+		// time stamp: hh:mm:ss
+		hour = parseInt(data, length, ':');
+		minute = parseInt(data, length, ':');
+		second = parseInt(data, length, ',');
+
+		// channel values
+		for (int i = 0; i < numChannels && !failed; i++)
+			values[i] = parseDouble(data, length);
+
+		return !failed;
+	}
+
+	/**
+	 * Parses the data of a SLAVE_DATA frame sent in the binary format.
+	 * @param data the frame data
+	 * @param length the number of bytes of data
+	 * @param numChannels the number of channel values expected after the time stamp
+	 * @return true if the frame holds the time stamp and all the channel values
+	 */
+	boolean parseBinary(byte[] data, int length, int numChannels) {
+		if (length < BINARY_HEADER_LENGTH + numChannels * BINARY_VALUE_LENGTH)
+			return false;
+
+		if (values.length < numChannels)
+			values = new double[numChannels];
+
+		if (binaryData == null || binaryData.array() != data)
+			binaryData = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer buffer = binaryData;
+
+		year = buffer.getShort(0) & 0xFFFF;
+		month = buffer.get(2);
+		day = buffer.get(3);
+		hour = buffer.get(4);
+		minute = buffer.get(5);
+		second = buffer.get(6);
+		sequence = buffer.get(7) & 0xFF;
+
+		for (int i = 0; i < numChannels; i++)
+			values[i] = buffer.getInt(BINARY_HEADER_LENGTH + i * BINARY_VALUE_LENGTH);
+
+		return true;
+	}
+
+	/**
+	 * Reads an unsigned integer up to the separator, and moves past the separator.
+	 */
+	private int parseInt(byte[] data, int length, char separator) {
+		int value = 0;
+		int start = pos;
+
+		while (pos < length && data[pos] >= '0' && data[pos] <= '9') {
+			value = value * 10 + (data[pos] - '0');
+			pos++;
+		}
+
+		if (pos == start || pos >= length || data[pos] != separator) {
+			failed = true;
+			return 0;
+		}
+
+		// skip the separator
+		pos++;
+		return value;
+	}
+
+	/**
+	 * Reads a signed decimal value up to the next ',' or the end of the data,
+	 * and moves past the ','.
+	 */
+	private double parseDouble(byte[] data, int length) {
+		skipWhitespace(data, length);
+
+		boolean negative = false;
+		if (pos < length && (data[pos] == '-' || data[pos] == '+')) {
+			negative = data[pos] == '-';
+			pos++;
+		}
+
+		long mantissa = 0;
+		int numDigits = 0;
+		int fractionDigits = 0;
+		boolean fraction = false;
+
+		while (pos < length) {
+			byte b = data[pos];
+			if (b >= '0' && b <= '9') {
+				// digits beyond the precision of a double are ignored
+				if (numDigits < 18) {
+					mantissa = mantissa * 10 + (b - '0');
+					numDigits++;
+					if (fraction)
+						fractionDigits++;
+				} else if (!fraction) {
+					failed = true;
+					return 0;
+				}
+			} else if (b == '.' && !fraction) {
+				fraction = true;
+			} else {
+				break;
+			}
+			pos++;
+		}
+
+		skipWhitespace(data, length);
+
+		if (numDigits == 0 || (pos < length && data[pos] != ',')) {
+			failed = true;
+			return 0;
+		}
+
+		// skip the separator
+		pos++;
+
+		double value = mantissa / POWERS_OF_TEN[fractionDigits];
+		return negative ? -value : value;
+	}
+
+	private void skipWhitespace(byte[] data, int length) {
+		while (pos < length && (data[pos] == ' ' || data[pos] == '\r' || data[pos] == '\t'))
+			pos++;
+	}
+
+	/* Getters */
+
+	int getYear() {
+		return year;
+	}
+
+	int getMonth() {
+		return month;
+	}
+
+	int getDay() {
+		return day;
+	}
+
+	int getHour() {
+		return hour;
+	}
+
+	int getMinute() {
+		return minute;
+	}
+
+	int getSecond() {
+		return second;
+	}
+
+	/**
+	 * @return the sequence number of the last binary frame, -1 if it was an ASCII frame
+	 */
+	int getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @param channel index of the channel in the frame
+	 * @return the value of the channel in the last parsed frame
+	 */
+	double getValue(int channel) {
+		return values[channel];
+	}
+}
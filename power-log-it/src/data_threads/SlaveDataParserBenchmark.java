@@ -0,0 +1,74 @@
+package data_threads;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures the number of SLAVE_DATA frames parsed per second by the
+ * SlaveDataParser, compared with parsing using String.split.
+ *
+ * Run with: java data_threads.SlaveDataParserBenchmark [frames]
+ */
+class SlaveDataParserBenchmark {
+	/** Number of distinct frames cycled through so the values are not constant */
+	private static final int NUM_FRAMES = 1024;
+
+	/** Number of timed rounds for each parser */
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) {
+		int framesPerRound = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+
+		// build a set of frames in the format sent by the device
+		byte[][] frames = new byte[NUM_FRAMES][];
+		for (int i = 0; i < NUM_FRAMES; i++) {
+			String frame = "2015-07-" + (10 + i % 20) + ",12:" + (10 + i % 50) + ":" + (10 + i % 50)
+					+ "," + (i * 37 % 100000) + "," + (3300 + i % 1000);
+			frames[i] = frame.getBytes(StandardCharsets.US_ASCII);
+		}
+
+		SlaveDataParser parser = new SlaveDataParser();
+
+		// warm up both parsers so they are compiled before timing
+		double sink = runParser(parser, frames, framesPerRound) + runSplit(frames, framesPerRound / 10);
+
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			sink += runParser(parser, frames, framesPerRound);
+			long parserTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			sink += runSplit(frames, framesPerRound / 10);
+			long splitTime = System.nanoTime() - start;
+
+			System.out.printf("round %d: SlaveDataParser %,.0f frames/s, String.split %,.0f frames/s%n",
+					round, framesPerRound / (parserTime / 1e9), (framesPerRound / 10) / (splitTime / 1e9));
+		}
+
+		// prevents the parsing from being optimised away
+		System.out.println("checksum: " + sink);
+	}
+
+	private static double runParser(SlaveDataParser parser, byte[][] frames, int numFrames) {
+		double sum = 0;
+		for (int i = 0; i < numFrames; i++) {
+			byte[] frame = frames[i & (NUM_FRAMES - 1)];
+			if (parser.parse(frame, frame.length, 2))
+				sum += parser.getSecond() + parser.getValue(0) + parser.getValue(1);
+		}
+		return sum;
+	}
+
+	/** The parsing previously used for each SLAVE_DATA frame */
+	private static double runSplit(byte[][] frames, int numFrames) {
+		double sum = 0;
+		for (int i = 0; i < numFrames; i++) {
+			byte[] frame = frames[i & (NUM_FRAMES - 1)];
+			String[] dataStrings = new String(frame, StandardCharsets.US_ASCII).split(",");
+			String[] currTime = dataStrings[1].split(":");
+			dataStrings[0].split("-");
+			sum += Integer.parseInt(currTime[2]) + Double.parseDouble(dataStrings[2])
+					+ Double.parseDouble(dataStrings[3]);
+		}
+		return sum;
+	}
+}
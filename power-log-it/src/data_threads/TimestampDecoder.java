@@ -0,0 +1,53 @@
+package data_threads;
+
+import java.util.Calendar;
+
+/**
+ * Converts the time stamps sent by the device into epoch milliseconds.
+ *
+ * Consecutive frames almost always share the same date, hour and minute, so
+ * the epoch value of the current yyyy-mm-dd hh:mm prefix is cached and only
+ * the seconds are added for each frame. The Calendar is only used when the
+ * minute changes.
+ */
+class TimestampDecoder {
+	/** Used to calculate the epoch value of a new minute (local time zone) */
+	private final Calendar calendar = Calendar.getInstance();
+
+	/** The date and time of the cached minute */
+	private int cachedYear = -1;
+	private int cachedMonth;
+	private int cachedDay;
+	private int cachedHour;
+	private int cachedMinute;
+
+	/** Epoch milliseconds at the start of the cached minute */
+	private long cachedMinuteMillis;
+
+	/**
+	 * @param year the full year, e.g. 2015
+	 * @param month the month of the year, 1 to 12 (as sent by the device)
+	 * @param day the day of the month, 1 to 31
+	 * @param hour the hour of the day, 0 to 23
+	 * @param minute 0 to 59
+	 * @param second 0 to 59
+	 * @return the time stamp in epoch milliseconds
+	 */
+	long decode(int year, int month, int day, int hour, int minute, int second) {
+		if (minute != cachedMinute || hour != cachedHour || day != cachedDay
+				|| month != cachedMonth || year != cachedYear) {
+			// Calendar months are 0-based, the device's months are 1-based
+			calendar.clear();
+			calendar.set(year, month - 1, day, hour, minute, 0);
+			cachedMinuteMillis = calendar.getTimeInMillis();
+
+			cachedYear = year;
+			cachedMonth = month;
+			cachedDay = day;
+			cachedHour = hour;
+			cachedMinute = minute;
+		}
+
+		return cachedMinuteMillis + second * 1000L;
+	}
+}
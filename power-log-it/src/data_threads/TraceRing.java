@@ -0,0 +1,101 @@
+package data_threads;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size in-memory trace of the frames sent to and received from a device.
+ *
+ * Each event is stored as primitives in preallocated arrays, so recording an
+ * event neither allocates nor writes to the console. Once the ring is full the
+ * oldest events are overwritten. Tracing is disabled by default, in which case
+ * recording an event is a single volatile read.
+ *
+ * The trace can be dumped on demand, and is dumped automatically when the
+ * device reports an error.
+ */
+public class TraceRing {
+	/** Event types */
+	static final byte SEND = 0;
+	static final byte RECEIVE = 1;
+	static final byte UNHANDLED = 2;
+	static final byte DEVICE_ERROR = 3;
+	private static final String[] EVENT_NAMES = { "snd", "rcv", "unhandled", "error" };
+
+	/** Number of events kept, must be a power of 2 */
+	private static final int CAPACITY = 1 << 12;
+	private final int mask = CAPACITY - 1;
+
+	/** The fields of each event, indexed by sequence number modulo the capacity */
+	private final long[] times = new long[CAPACITY];
+	private final byte[] types = new byte[CAPACITY];
+	private final byte[] commands = new byte[CAPACITY];
+	private final int[] values = new int[CAPACITY];
+
+	/** The sequence number of the next event */
+	private final AtomicLong next = new AtomicLong();
+
+	private volatile boolean enabled;
+
+	/**
+	 * Creates a trace ring which is enabled when the log4.trace system property is true.
+	 */
+	TraceRing() {
+		enabled = Boolean.getBoolean("log4.trace");
+	}
+
+	/**
+	 * Records an event if tracing is enabled.
+	 * @param type one of the event types
+	 * @param command the command byte of the frame
+	 * @param value the data length of the frame, or the error code for DEVICE_ERROR
+	 */
+	void record(byte type, byte command, int value) {
+		if (!enabled)
+			return;
+
+		int i = (int) next.getAndIncrement() & mask;
+		times[i] = System.nanoTime();
+		types[i] = type;
+		commands[i] = command;
+		values[i] = value;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Writes the recorded events from the oldest to the newest, with the time
+	 * of each event relative to the oldest one.
+	 *
+	 * The events are copied out of the ring before they are written, events
+	 * recorded during the copy may be shown incompletely.
+	 */
+	public void dump(PrintStream out) {
+		long end = next.get();
+		long start = Math.max(0, end - CAPACITY);
+		if (end == start) {
+			out.println("Trace is empty");
+			return;
+		}
+
+		long[] times = this.times.clone();
+		byte[] types = this.types.clone();
+		byte[] commands = this.commands.clone();
+		int[] values = this.values.clone();
+
+		long firstTime = times[(int) start & mask];
+		out.println("Trace of the last " + (end - start) + " events:");
+		for (long seq = start; seq < end; seq++) {
+			int i = (int) seq & mask;
+			out.printf("%12.3f ms %-9s cmd=0x%02X %s=%d%n",
+					(times[i] - firstTime) / 1e6, EVENT_NAMES[types[i]], commands[i] & 0xFF,
+					types[i] == DEVICE_ERROR ? "code" : "len", values[i]);
+		}
+	}
+}
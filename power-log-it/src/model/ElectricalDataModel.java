@@ -26,6 +26,7 @@ import org.jfree.data.general.SeriesException;
 import org.jfree.data.time.*;
 import org.apache.commons.math3.stat.descriptive.*;
 
+import data_threads.DataRunnable;
 import data_threads.SerialCommsRunnable;
 import data_threads.SimulationRunnable;
 import view_and_controller.BatteryMonitorWindow;
@@ -45,6 +46,13 @@ public class ElectricalDataModel implements ActionListener,
 	// Update the graph at a rate of once per 1 second
 	private static final int UPDATE_PERIOD = 1000;
 	private Timer updateTimer;
+	
+	// The buffered data is drained through these arrays, a batch at a time,
+	// stopping after MAX_DRAIN_BATCHES so a fast device cannot hold the EDT
+	private static final int DRAIN_BATCH_SIZE = 4096;
+	private static final int MAX_DRAIN_BATCHES = 64;
+	private final long[] batchTimes = new long[DRAIN_BATCH_SIZE];
+	private final double[] batchValues = new double[DRAIN_BATCH_SIZE];
 
 	// Objects store the current data displayed in the histogram and line charts
 	private ObTimeSeriesCollection obDataCollection;
@@ -68,7 +76,8 @@ public class ElectricalDataModel implements ActionListener,
 	private ObservableDate startTime;
 	private ObservableDate endTime;
 
-	private Millisecond logStartTime;
+	// the time the statistics start from (Epoch milliseconds)
+	private long logStartTime;
 	// menu bar buttons which contain cursor status
 	JRadioButtonMenuItem[] cursorEnableButtons;
 	ArrayList<MyValueMarker> myMarkers;
@@ -91,7 +100,7 @@ public class ElectricalDataModel implements ActionListener,
 		this.serialRunner = serialRunner;
 		this.simulateRunner = simulateRunner;
 		this.elecDataType = elecDataType;
-		logStartTime= new Millisecond(new Date(System.currentTimeMillis()));
+		logStartTime = System.currentTimeMillis();
 		// initially data capture is disabled
 		updateTimer = new Timer(UPDATE_PERIOD, this);
 		updateTimer.stop();
@@ -156,25 +165,15 @@ public class ElectricalDataModel implements ActionListener,
 			
 			// update the times which the statistics are recorded between
 			if (series.getItemCount() != 0) {
-				startTime.setDate(new Date(logStartTime.getMiddleMillisecond()));
+				startTime.setDate(new Date(logStartTime));
 				endTime.setDate(new Date(series.getTimePeriod(
-						series.getItemCount() - 1).getMiddleMillisecond()));
-			}
-			int k=0;
-			for (k = 0; k<series.getItemCount(); k++){
-				if(new Date(series.getDataItem(k).getPeriod().getMiddleMillisecond()).before(startTime.getDate())){
-				}
-				else{
-					break;
-				}
-			}
-			double[] statAndHistData = new double[series.getItemCount()-k];
-			/* Histogram is revalidated with new data. */
-			for (int j = 0; j < statAndHistData.length; j++) {
-				
-				statAndHistData[j] = series.getDataItem(j+k).getValue().doubleValue();
+						series.getItemCount() - 1).getFirstMillisecond()));
 			}
 			
+			/* Histogram is revalidated with the data since the log started. */
+			int k = indexOfTime(series, logStartTime);
+			double[] statAndHistData = getValues(series, k, series.getItemCount());
+			
 			
 			// add the array of histogram data to the list
 			channelStatAndHistData.add(statAndHistData);
@@ -195,27 +194,19 @@ public class ElectricalDataModel implements ActionListener,
 	 * @return values to be used in the histogram that fall between minTime and
 	 *         maxTime
 	 */
-	private void updateHistogramDataAndStats(Date minTime, Date maxTime) {
+	private void updateHistogramDataAndStats(long minTime, long maxTime) {
 		channelStatAndHistData = new ArrayList<>();
 		
 		// update the times which the statistics are recorded between
-		startTime.setDate(minTime);
-		endTime.setDate(maxTime);
+		startTime.setDate(new Date(minTime));
+		endTime.setDate(new Date(maxTime));
 		
 		for(int i=0 ; i < obDataCollection.getSeriesCount(); i++) {
 			TimeSeries series = obDataCollection.getSeries(i);
-			ArrayList<Double> dataList = new ArrayList<Double>();
 			
-			for (int j = 0; j < series.getItemCount(); j++) {
-				Date time = series.getDataItem(j).getPeriod().getStart();
-				if (time.after(minTime) && time.before(maxTime))
-					dataList.add(series.getDataItem(j).getValue().doubleValue());
-			}
-			
-			double[] statAndHistData = new double[dataList.size()];
-			for (int j = 0; j < dataList.size(); j++) {
-				statAndHistData[j] = dataList.get(j);
-			}
+			// the points strictly between the cursors
+			double[] statAndHistData = getValues(series, indexOfTime(series, minTime + 1),
+					indexOfTime(series, maxTime));
 			
 			channelStatAndHistData.add(statAndHistData);
 			updateTableStatistics(statAndHistData, channelFormattedStats.get(i));
@@ -234,40 +225,31 @@ public class ElectricalDataModel implements ActionListener,
 	 *            (true) or above cursors (false)
 	 * @return data set for histogram
 	 */
-	private void updateHistogramDataAndStats(Date cutOffTime, boolean before) {
+	private void updateHistogramDataAndStats(long cutOffTime, boolean before) {
 		channelStatAndHistData = new ArrayList<>();
 		
 		for(int i=0 ; i < obDataCollection.getSeriesCount(); i++) {
 			TimeSeries series = obDataCollection.getSeries(i);
-			ArrayList<Double> dataList = new ArrayList<Double>();
 			
 			// update the times the statistics are recorded between
 			// for this particular channel
 			if (before) {
 				startTime.setDate(new Date(series.getTimePeriod(0)
-						.getMiddleMillisecond()));
-				endTime.setDate(cutOffTime);
+						.getFirstMillisecond()));
+				endTime.setDate(new Date(cutOffTime));
 			} else {
-				startTime.setDate(cutOffTime);
+				startTime.setDate(new Date(cutOffTime));
 				endTime.setDate(new Date(series.getTimePeriod(
-						series.getItemCount() - 1).getMiddleMillisecond()));
+						series.getItemCount() - 1).getFirstMillisecond()));
 			}
 			
 			// get the relevant channel data that fall within the time window
-			for (int j = 0; j < series.getItemCount(); j++) {
-				Date time = series.getDataItem(j).getPeriod().getStart();
-				if (before && time.before(cutOffTime))
-					dataList.add(series.getDataItem(j).getValue().doubleValue());
-				else if (!before && time.after(cutOffTime))
-					dataList.add(series.getDataItem(j).getValue().doubleValue());
-			}
-			
-			// update the statistics used in the histogram
-			double[] statAndHistData = new double[dataList.size()];
-			for (int j = 0; j < dataList.size(); j++) {
-				statAndHistData[j] = dataList.get(j);
-				
-			}
+			double[] statAndHistData;
+			if (before)
+				statAndHistData = getValues(series, 0, indexOfTime(series, cutOffTime));
+			else
+				statAndHistData = getValues(series, indexOfTime(series, cutOffTime + 1),
+						series.getItemCount());
 			
 			// store the histogram data in the list and update the associated formatted statistics
 			channelStatAndHistData.add(statAndHistData);
@@ -276,6 +258,42 @@ public class ElectricalDataModel implements ActionListener,
 		}
 	}
 
+	/**
+	 * Finds the first item of a series at or after a time. The items of a
+	 * series are in time order, so the search is binary.
+	 * 
+	 * @param time
+	 *            the time to search for (Epoch milliseconds)
+	 * @return the index of the item, or the item count if every item is earlier
+	 */
+	private static int indexOfTime(TimeSeries series, long time) {
+		int low = 0;
+		int high = series.getItemCount();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (series.getTimePeriod(mid).getFirstMillisecond() < time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * @return the values of the series items from index start up to, but not
+	 *         including, index end, without the NaN items marking gaps
+	 */
+	private static double[] getValues(TimeSeries series, int start, int end) {
+		double[] values = new double[Math.max(end - start, 0)];
+		int count = 0;
+		for (int j = 0; j < values.length; j++) {
+			double value = series.getValue(start + j).doubleValue();
+			if (!Double.isNaN(value))
+				values[count++] = value;
+		}
+		return count == values.length ? values : Arrays.copyOf(values, count);
+	}
+
 	/**
 	 * 
 	 * @param data
@@ -330,9 +348,8 @@ public class ElectricalDataModel implements ActionListener,
 		} else if (!cursorEnableButtons[0].isSelected()
 				&& cursorEnableButtons[1].isSelected()) {
 			// cursor 1 is the only active cursor
-			Date date = new Date((long) myMarkers.get(1).getValueMarker()
-					.getValue());
-			updateHistogramDataAndStats(date, false);
+			long time = (long) myMarkers.get(1).getValueMarker().getValue();
+			updateHistogramDataAndStats(time, false);
 		}
 	}
 
@@ -348,15 +365,12 @@ public class ElectricalDataModel implements ActionListener,
 			if (cursorEnableButtons[0].isSelected()
 					&& cursorEnableButtons[1].isSelected()) {
 				// cursor 0 and cursor 1 are both active
-				Date date0, date1;
-				date0 = new Date((long) myMarkers.get(0).getValueMarker()
-						.getValue());
-				date1 = new Date((long) myMarkers.get(1).getValueMarker()
-						.getValue());
+				long time0 = (long) myMarkers.get(0).getValueMarker().getValue();
+				long time1 = (long) myMarkers.get(1).getValueMarker().getValue();
 
-				if (date0.before(date1)) {
+				if (time0 < time1) {
 					// cursor 0 is before cursor 1
-					updateHistogramDataAndStats(date0, date1);
+					updateHistogramDataAndStats(time0, time1);
 					for(int i=0 ; i<marker0Ys.size(); i++) {
 						marker0Ys.get(i).setDataStr(channelStatAndHistData.get(i)[0]);
 						marker1Ys.get(i).setDataStr(channelStatAndHistData.get(i)
@@ -364,7 +378,7 @@ public class ElectricalDataModel implements ActionListener,
 					}
 				} else {
 					// cursor 1 is before cursor 0
-					updateHistogramDataAndStats(date1, date0);
+					updateHistogramDataAndStats(time1, time0);
 					for(int i=0 ; i<marker0Ys.size(); i++) {
 						marker0Ys.get(i).setDataStr(channelStatAndHistData.get(i)
 							[channelStatAndHistData.get(i).length - 1]);
@@ -373,9 +387,8 @@ public class ElectricalDataModel implements ActionListener,
 				}
 			} else if (cursorEnableButtons[0].isSelected()) {
 				// cursor 0 is the only active cursor
-				Date date = new Date((long) myMarkers.get(0).getValueMarker()
-						.getValue());
-				updateHistogramDataAndStats(date, true);
+				long time = (long) myMarkers.get(0).getValueMarker().getValue();
+				updateHistogramDataAndStats(time, true);
 				
 				// update the cursor 0 y-values
 				for(int i=0 ; i<marker0Ys.size(); i++) {
@@ -385,9 +398,8 @@ public class ElectricalDataModel implements ActionListener,
 
 			} else if (cursorEnableButtons[1].isSelected()) {
 				// cursor 1 is the only active cursor
-				Date date = new Date((long) myMarkers.get(1).getValueMarker()
-						.getValue());
-				updateHistogramDataAndStats(date, false);
+				long time = (long) myMarkers.get(1).getValueMarker().getValue();
+				updateHistogramDataAndStats(time, false);
 				
 				// update the cursor 1 y-values
 				for(int i=0 ; i<marker0Ys.size(); i++) {
@@ -533,7 +545,7 @@ public class ElectricalDataModel implements ActionListener,
 
 	@Override
 	public void actionPerformed(ActionEvent e) {
-		ArrayList<ArrayList<TimeDataPoint>> dataBuffers = null;
+		DataRunnable runner = null;
 
 		if (e.getSource().equals(updateTimer)) {
 
@@ -541,22 +553,18 @@ public class ElectricalDataModel implements ActionListener,
 			//TODO simulation thread stuff
 			
 			if(serialRunner.isRunning()) {
-				dataBuffers = serialRunner.drainDataBuffers(elecDataType);
+				runner = serialRunner;
 			} else if (simulateRunner.isRunning()) {
-				dataBuffers = simulateRunner.drainDataBuffers(elecDataType);
+				runner = simulateRunner;
 			}
 			
 			/* If neither of the simulation or serial threads are running
 			 * do nothing */
-			if(dataBuffers == null)
+			if(runner == null)
 				return;
 			
-			// Updating energy series involves an integration of power
-			if (elecDataType == ElectricalDataTypes.ENERGY) {
-				updateEnergySeries(dataBuffers);
-			} else {
-				updateRegularSeries(dataBuffers);
-			}
+			// the energy is integrated from the power by the data thread
+			updateRegularSeries(runner);
 
 		} else if (e.getSource() instanceof JButton) {
 			// start, pause or stop capture buttons has been pressed
@@ -591,141 +599,67 @@ public class ElectricalDataModel implements ActionListener,
 	/**
 	 * Drain the buffered data into this data model.
 	 * 
-	 * @param dataPoints
-	 *            the buffered data to be drained into this data model.
+	 * @param runner
+	 *            the thread whose buffered data is drained into this data model.
 	 */
-	private void updateRegularSeries(
-			ArrayList<ArrayList<TimeDataPoint>> dataBuffers) {
-		if (dataBuffers.size() != obDataCollection.getSeriesCount()
-				|| dataBuffers.size() != obLineDataCollection.getSeriesCount()) {
-			System.err.println("Error: Databuffers Size = " + dataBuffers.size() + ", "
+	private void updateRegularSeries(DataRunnable runner) {
+		int numChannels = runner.getNumChannels(elecDataType);
+		if (numChannels != obDataCollection.getSeriesCount()
+				|| numChannels != obLineDataCollection.getSeriesCount()) {
+			System.err.println("Error: Databuffers Size = " + numChannels + ", "
 					+ "Datacollection Size = " + obDataCollection.getSeriesCount());
 			return;
 		}
 try{
 			FileWriter fileWriter = new FileWriter(temp,true);
-		for (int i = 0; i < dataBuffers.size(); i++) {
-			ArrayList<TimeDataPoint> dataPoints = dataBuffers.get(i);
+		for (int i = 0; i < numChannels; i++) {
 			TimeSeries seriesData = obDataCollection.getSeries(i);
 			TimeSeries lineSeriesData = obLineDataCollection.getSeries(i);
-			while (dataPoints.size() > 0) {
-				TimeDataPoint currDataPoint = dataPoints.remove(0);
-				if (obDataCollection.getSeries(i).getItemCount()==0){
-					obDataCollection.getSeries(0).setMaximumItemAge(MAX_ITEM_AGE);
-					obLineDataCollection.getSeries(0).setMaximumItemAge(MAX_ITEM_AGE);
-					for(int j=MAX_ITEM_AGE;j>0;j-=1000){
-					seriesData.add(new Millisecond( new Date(currDataPoint.getTime().getMiddleMillisecond()-j)), 0.0);
-					lineSeriesData.add(seriesData.getDataItem(seriesData.getItemCount() - 1));
-					}
-					logStartTime = currDataPoint.getTime();
-					dataSize=0;
-				}
-				
-				try {
-					longTermStatData=currDataPoint.getValu();
-					seriesData.add(currDataPoint.getTime(),
-							currDataPoint.getValu());
-					lineSeriesData.add(seriesData.getDataItem(seriesData
-							.getItemCount() - 1));
-					fileWriter.write(currDataPoint.getTime().getMiddleMillisecond() + "," + currDataPoint.getValu()+"\n");
-					
-					
-				} catch (SeriesException exception) {
-					System.err.println("Duplicate Data Points");
-				}
-				
-			}
-			
 			
-		}
-			fileWriter.flush();
-			fileWriter.close();
-			} catch (IOException e){
-				e.printStackTrace();
-			}
-	}
-
-	/**
-	 * Converts the buffered power data into energy data and drains it into this
-	 * data model.
-	 * 
-	 * @param powerPoints
-	 *            the buffered power data.
-	 */
-	private void updateEnergySeries(
-			ArrayList<ArrayList<TimeDataPoint>> powerBuffers) {
-		try{
-			FileWriter fileWriter = new FileWriter(temp,true);
-			// iterate through the energy buffers, storing the new data points in
-			// each
-			for (int i = 0; i < powerBuffers.size(); i++) {
-				ArrayList<TimeDataPoint> powerPoints = powerBuffers.get(i);
-				TimeSeries seriesData = obDataCollection.getSeries(i);
-				TimeSeries lineSeriesData = obLineDataCollection.getSeries(i);
-
-				while (powerPoints.size() > 0) {
-					// the current power data point to be converted and added
-					TimeDataPoint powerDataPoint = powerPoints.remove(0);
+			// drain the channel a batch at a time, until a batch is not full
+			int count;
+			int batches = 0;
+			do {
+				count = runner.drainDataBuffer(elecDataType, i, batchTimes, batchValues);
+				for (int k = 0; k < count; k++) {
+					long time = batchTimes[k];
+					double value = batchValues[k];
 					if (obDataCollection.getSeries(i).getItemCount()==0){
 						obDataCollection.getSeries(0).setMaximumItemAge(MAX_ITEM_AGE);
 						obLineDataCollection.getSeries(0).setMaximumItemAge(MAX_ITEM_AGE);
 						for(int j=MAX_ITEM_AGE;j>0;j-=1000){
-						seriesData.add(new Millisecond( new Date(powerDataPoint.getTime().getMiddleMillisecond()-j)), 0.0);
-						lineSeriesData.add(seriesData.getDataItem(seriesData
-								.getItemCount() - 1));
+						seriesData.add(toPeriod(time-j), 0.0);
+						lineSeriesData.add(seriesData.getDataItem(seriesData.getItemCount() - 1));
 						}
-					logStartTime =powerDataPoint.getTime();
-					dataSize=0;
+						logStartTime = time;
+						dataSize=0;
 					}
 					
-	
-					// the time difference between two points in seconds
-					double dt;
-					// catches exception associated with duplicate time values
 					try {
-						if (seriesData.getItemCount() > 0) {
-							dt = powerDataPoint.getTime().getMiddleMillisecond()
-									- seriesData.getTimePeriod(
-											seriesData.getItemCount() - 1)
-											.getMiddleMillisecond();
-							dt = dt / 1e3;
-	
-							// new energy value is the old energy value plus dt*(new
-							// power value)
-							longTermStatData=seriesData.getValue(seriesData.getItemCount() - 1).doubleValue()
-									+ dt * powerDataPoint.getValu();
-							seriesData.add(powerDataPoint.getTime(), seriesData
-									.getValue(seriesData.getItemCount() - 1)
-									.doubleValue()
-									+ dt * powerDataPoint.getValu());
-							fileWriter.write(powerDataPoint.getTime().getMiddleMillisecond() + "," + (seriesData
-									.getValue(seriesData.getItemCount() - 1)
-									.doubleValue()
-									+ dt * powerDataPoint.getValu()+"\n"));
-							
-						} else {
-							// first data point: initially no energy stored
-							longTermStatData=0;
-							seriesData.add(powerDataPoint.getTime(), 0);
-							fileWriter.write(powerDataPoint.getTime().getMiddleMillisecond() +",0\n");
-							
-						}
-						// update the line series
+						// a NaN point marks a gap in the data, the line is broken
+						// there and the file keeps it as a NaN row
+						if (!Double.isNaN(value))
+							longTermStatData=value;
+						seriesData.add(toPeriod(time),
+								value);
 						lineSeriesData.add(seriesData.getDataItem(seriesData
 								.getItemCount() - 1));
+						fileWriter.write(time + "," + value+"\n");
+						
 						
 					} catch (SeriesException exception) {
-						System.err.println("Duplicate Energy Data Points");
+						System.err.println("Duplicate Data Points");
 					}
+					
 				}
-			}
-			
+			} while (count == batchTimes.length && ++batches < MAX_DRAIN_BATCHES);
 			
+		}
 			fileWriter.flush();
 			fileWriter.close();
-		} catch(IOException e){
-			e.printStackTrace();
-		}
+			} catch (IOException e){
+				e.printStackTrace();
+			}
 	}
 
 	/* Getters and Setters */
@@ -942,13 +876,21 @@ try{
 	 * @param value
 	 */
 	public void addChartData(int channelNumber, long time, double value) {
-		Millisecond time2 = new Millisecond(new Date(time));
+		Millisecond time2 = toPeriod(time);
 		obDataCollection.getSeries(channelNumber).add(time2, value);
 		obLineDataCollection.getSeries(channelNumber).add(time2, value);
 	}
 	
 	public void setLogStartTime(long time){
-		logStartTime=new Millisecond(new Date(time));
+		logStartTime=time;
+	}
+	
+	/**
+	 * Creates the chart period for a time, the data models and the buffers
+	 * feeding them only use epoch milliseconds.
+	 */
+	private static Millisecond toPeriod(long time) {
+		return new Millisecond(new Date(time));
 	}
 	
 	public void stopUpdateTimer(){
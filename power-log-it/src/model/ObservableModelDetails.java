@@ -23,6 +23,9 @@ import org.json.JSONObject;
  */
 public class ObservableModelDetails extends Observable {
 	
+	/** The first firmware version which can stream binary SLAVE_DATA (1.0.0, major << 16 | minor << 8 | patch) */
+	private static final int BINARY_DATA_FIRMWARE_VERSION = 0x010000;
+	
 	private String name;
 	
 	private boolean hasModelDetails;
@@ -132,6 +135,10 @@ public class ObservableModelDetails extends Observable {
 		return channels;
 	}
 	
+	public boolean hasCheckSum() {
+		return checkSum;
+	}
+	
 	public int getMaxSamplingRate() {
 		return maxSamplingRate;
 	}
@@ -144,6 +151,13 @@ public class ObservableModelDetails extends Observable {
 		return firmWareVersion;
 	}
 	
+	/**
+	 * @return true if the device's firmware can stream SLAVE_DATA in the binary format
+	 */
+	public boolean hasBinaryData() {
+		return firmWareVersion != null && firmWareVersion >= BINARY_DATA_FIRMWARE_VERSION;
+	}
+	
 	public int getMaxBaudRate() {
 		return baudRates[baudRates.length-1];
 	}
@@ -10,6 +10,8 @@ import java.util.*;
 
 import javax.swing.*;
 
+import data_threads.CaptureReplay;
+import data_threads.DeviceManager;
 import data_threads.SerialCommsRunnable;
 import data_threads.SimulationRunnable;
 import model.*;
@@ -51,6 +53,21 @@ public class ContentPanel extends JPanel implements ActionListener, WindowListen
 	/** Menu option for enabling and disabling simulation mode */
 	private JRadioButtonMenuItem simulateMenuButton;
 	
+	/** Menu option for downloading the records logged on the device */
+	private JMenuItem downloadMenuButton;
+	
+	/** Menu option for starting and stopping a raw capture of the serial data */
+	private JCheckBoxMenuItem rawCaptureMenuButton;
+	
+	/** Menu option for replaying a raw capture of the serial data */
+	private JMenuItem replayMenuButton;
+	
+	/** Menu option for acquiring from another device alongside the one displayed */
+	private JMenuItem addDeviceMenuButton;
+	
+	/** Runs the pipelines of the devices added with the add device menu option */
+	private DeviceManager deviceManager;
+	
 	public ContentPanel(Map<ElectricalDataTypes,ElectricalDataModel> dataModels, 
 			SerialCommsRunnable serialCommsRunner, SimulationRunnable simulateRunner, 
 			ObservableModelDetails observableModelDetails,
@@ -92,6 +109,18 @@ public class ContentPanel extends JPanel implements ActionListener, WindowListen
 		// Get the menu button for enabling and disabling simulation mode
 		simulateMenuButton = (JRadioButtonMenuItem) toolsMenu.getSubElements()[0].getSubElements()[4];
 		
+		// Get the menu button for downloading the device log
+		downloadMenuButton = (JMenuItem) toolsMenu.getSubElements()[0].getSubElements()[5];
+		
+		// Get the menu button for recording the raw serial data
+		rawCaptureMenuButton = (JCheckBoxMenuItem) toolsMenu.getSubElements()[0].getSubElements()[6];
+		
+		// Get the menu button for replaying the raw serial data
+		replayMenuButton = (JMenuItem) toolsMenu.getSubElements()[0].getSubElements()[7];
+		
+		// Get the menu button for adding another device
+		addDeviceMenuButton = (JMenuItem) toolsMenu.getSubElements()[0].getSubElements()[8];
+		
 		// Register the connected models details object
 		this.obModelDetails = observableModelDetails;
 		
@@ -99,6 +128,10 @@ public class ContentPanel extends JPanel implements ActionListener, WindowListen
 		simulateMenuButton.addActionListener(this);
 		batteryMenuButton.addActionListener(this);
 		deviceMenuButton.addActionListener(this);
+		downloadMenuButton.addActionListener(this);
+		rawCaptureMenuButton.addActionListener(this);
+		replayMenuButton.addActionListener(this);
+		addDeviceMenuButton.addActionListener(this);
 		openFile.addActionListener(this);
 		saveFile.addActionListener(this);
 	}
@@ -136,6 +169,63 @@ public class ContentPanel extends JPanel implements ActionListener, WindowListen
 			
 		} else if (event.getSource().equals(deviceMenuButton)) {
 			new DeviceDetailsWindow(obModelDetails, serialCommsRunner);
+		} else if (event.getSource().equals(downloadMenuButton)) {
+			// the downloaded records are saved to a .csv file, apart from the streamed data
+			if(fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+				File file = fileChooser.getSelectedFile();
+				if(!file.getName().endsWith(".csv"))
+					file = new File(file.getAbsolutePath() + ".csv");
+				serialCommsRunner.startFrameBufferDownload(this, file);
+			}
+		} else if (event.getSource().equals(rawCaptureMenuButton)) {
+			if(rawCaptureMenuButton.isSelected()) {
+				// choose the file the raw serial data is recorded to
+				JFileChooser captureChooser = new JFileChooser();
+				captureChooser.setSelectedFile(new File("capture.log4raw"));
+				
+				try {
+					if(captureChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+						serialCommsRunner.startRawCapture(captureChooser.getSelectedFile());
+						statusBar.showStatus("Recording raw serial data to " + captureChooser.getSelectedFile().getName());
+					}
+				} catch (IOException e) {
+					JOptionPane.showMessageDialog(this, "Unable to create the capture file: " + e.getMessage(),
+							"Record Raw Serial Data", JOptionPane.ERROR_MESSAGE);
+				}
+			} else {
+				serialCommsRunner.stopRawCapture();
+				statusBar.showStatus("Stopped recording raw serial data");
+			}
+			rawCaptureMenuButton.setSelected(serialCommsRunner.isRawCapturing());
+		} else if (event.getSource().equals(replayMenuButton)) {
+			// choose the capture to replay
+			JFileChooser captureChooser = new JFileChooser();
+			
+			if(captureChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION
+					&& checkUserReplayConfirmation()) {
+				// the capture is decoded as if it came from the device, so disconnect from it
+				serialCommsRunner.close();
+				simulateRunner.close();
+				simulateMenuButton.setSelected(false);
+				
+				File file = captureChooser.getSelectedFile();
+				new Thread(new CaptureReplay(file, serialCommsRunner, true), "Capture Replay").start();
+				statusBar.showStatus("Replaying " + file.getName());
+			}
+		} else if (event.getSource().equals(addDeviceMenuButton)) {
+			if(deviceManager == null)
+				deviceManager = new DeviceManager();
+			
+			// the added device is not displayed or decoded, its raw serial data
+			// is recorded to a file which can be replayed later
+			JFileChooser captureChooser = new JFileChooser();
+			captureChooser.setSelectedFile(new File("device-" + (deviceManager.getDevices().size() + 1) + ".log4raw"));
+			
+			if(captureChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+				deviceManager.addDevice(captureChooser.getSelectedFile());
+				statusBar.showStatus("Device " + deviceManager.getDevices().size() + " is recorded to "
+						+ captureChooser.getSelectedFile().getName() + " once it is found");
+			}
 		} else if (event.getSource().equals(simulateMenuButton)) {
 			if(simulateMenuButton.isSelected()) {
 				// start the simulation thread, and kill the serial comms and serial comms timer thread
@@ -212,6 +302,24 @@ public class ContentPanel extends JPanel implements ActionListener, WindowListen
 		return n == JOptionPane.YES_OPTION;
 	}
 	
+	private boolean checkUserReplayConfirmation() {
+		// check if there is stored graph data (arbitrary choice of power)
+		if(dataModels.get(ElectricalDataTypes.POWER).isEmpty()) {
+			// no need to prompt the user as there is no data to loose
+			return true;
+		}
+		
+		// prompt the user as they are about to loose the current logged data
+		int n = JOptionPane.showConfirmDialog(
+				this, // the parent component
+				"Are you sure you want to replay the raw serial data, clear the current logged data " +
+				"and disconnect from the slaved device? All unsaved data will we lost.", 
+				"Clear data and replay raw serial data?", 		// title of the window
+				JOptionPane.YES_NO_OPTION); 			// 2 types of options
+		
+		return n == JOptionPane.YES_OPTION;
+	}
+	
 	/**
 	 * Open the .csv file for viewing
 	 */
@@ -167,6 +167,21 @@ public class Log4Analyser implements ActionListener {
 		toolsMenu.addSeparator();
 		toolsMenu.add(new JRadioButtonMenuItem("Simulation Mode"));
 		
+		// Used to download the records logged on the device
+		toolsMenu.addSeparator();
+		toolsMenu.add(new JMenuItem("Download Device Log"));
+		
+		// Used to record the raw serial data for replaying later
+		toolsMenu.add(new JCheckBoxMenuItem("Record Raw Serial Data"));
+		
+		// Used to replay recorded raw serial data as if it came from the device
+		toolsMenu.add(new JMenuItem("Replay Raw Serial Data"));
+		
+		// Used to acquire from another device alongside the one displayed,
+		// recording its raw serial data
+		toolsMenu.addSeparator();
+		toolsMenu.add(new JMenuItem("Add Device"));
+		
 		// View menu options
 		
 		// Cursor sub menu
@@ -26,9 +26,11 @@ import javax.swing.JPanel;
 import javax.swing.JRadioButtonMenuItem;
 import javax.swing.JSeparator;
 import javax.swing.SwingConstants;
+import javax.swing.Timer;
 import javax.swing.event.PopupMenuEvent;
 import javax.swing.event.PopupMenuListener;
 
+import data_threads.IngestMetrics;
 import data_threads.SerialCommsRunnable;
 import data_threads.SimulationRunnable;
 import jssc.SerialPortList;
@@ -73,6 +75,21 @@ public class StatusBar extends JPanel implements PopupMenuListener, ActionListen
 	/** Disabled when the user connects to the device via a combo-box.*/
 	private JRadioButtonMenuItem simulateMenuButton; 
 	
+	/** How often the acquisition metrics are refreshed (Milliseconds) */
+	private static final int METRICS_PERIOD = 1000;
+	
+	/** Shows the live acquisition metrics of the serial connection */
+	private JLabel metricsLbl;
+	private Timer metricsTimer;
+	
+	/** Shows the latest status message, e.g. where a capture is being recorded */
+	private JLabel statusLbl;
+	
+	/** The metrics at the last refresh, used to calculate the rates */
+	private long lastFrames;
+	private long lastBytes;
+	private long lastMetricsTime;
+	
 	public StatusBar(SerialCommsRunnable serialCommsRunner, SimulationRunnable simulateRunner,
 			Map<ElectricalDataTypes, ElectricalDataModel> dataModels, JMenuBar menuBar) {
 		/** Set up the layout and border of the status bar */
@@ -128,6 +145,20 @@ public class StatusBar extends JPanel implements PopupMenuListener, ActionListen
 		//add(Box.createHorizontalGlue());
 		add(comPortLabel);
 		add(comComboBox);
+		addSeperator();
+		
+		// Live acquisition metrics
+		metricsLbl = new JLabel();
+		add(metricsLbl);
+		lastMetricsTime = System.nanoTime();
+		updateMetrics();
+		metricsTimer = new Timer(METRICS_PERIOD, this);
+		metricsTimer.start();
+		
+		// Status messages
+		addSeperator();
+		statusLbl = new JLabel();
+		add(statusLbl);
 		
 		// Register the serial communications thread with the combo boxes
 		serialCommsRunner.setComboBoxChoices(CONNECT_STRING_BUFFERS);
@@ -225,6 +256,41 @@ public class StatusBar extends JPanel implements PopupMenuListener, ActionListen
 		}
 	}
 	
+	/**
+	 * Shows the frame and byte rates since the last refresh and the error counts.
+	 * The full set of counters is available from SerialCommsRunnable.getIngestMetrics().
+	 */
+	private void updateMetrics() {
+		IngestMetrics metrics = serialCommsRunner.getIngestMetrics();
+		long frames = metrics.getFramesDecoded();
+		long bytes = metrics.getBytesReceived();
+		long now = System.nanoTime();
+		double seconds = Math.max(now - lastMetricsTime, 1) / 1e9;
+		
+		String errorCode = metrics.getLastDeviceError() < 0 ? "-"
+				: String.format("0x%02X", metrics.getLastDeviceError());
+		metricsLbl.setText(String.format(
+				"%.0f frames/s, %.1f kB/s | skipped: %d, parse: %d, CRC: %d | queued: %d, dropped: %d, spilled: %d, cmds: %d | device errors: %d (last %s) | reconnects: %d",
+				(frames - lastFrames) / seconds, (bytes - lastBytes) / seconds / 1e3,
+				metrics.getBytesSkipped(), metrics.getParseFailures(), metrics.getCheckSumFailures(),
+				serialCommsRunner.getQueueDepth(), serialCommsRunner.getDroppedPoints(),
+				serialCommsRunner.getSpilledPoints(), serialCommsRunner.getPendingCommandCount(),
+				metrics.getDeviceErrors(), errorCode, metrics.getReconnects()));
+		metricsLbl.setMaximumSize(metricsLbl.getPreferredSize());
+		
+		lastFrames = frames;
+		lastBytes = bytes;
+		lastMetricsTime = now;
+	}
+	
+	/**
+	 * Shows a status message until the next one replaces it.
+	 */
+	public void showStatus(String status) {
+		statusLbl.setText(status);
+		statusLbl.setMaximumSize(statusLbl.getPreferredSize());
+	}
+	
 	private void registerComboBoxListener(ActionListener listener) {
 		for(ElectricalDataModel dataModel : dataModels.values()) {
 			connectComboBox.addActionListener(dataModel);
@@ -258,8 +324,13 @@ public class StatusBar extends JPanel implements PopupMenuListener, ActionListen
 	
 	@Override
 	public void actionPerformed(ActionEvent event) {
+		// refresh the acquisition metrics
+		if(event.getSource() == metricsTimer) {
+			updateMetrics();
+		}
+		
 		// handle a connect combo-box selection
-		if(event.getSource().equals(connectComboBox)) {
+		else if(event.getSource().equals(connectComboBox)) {
 			if(connectComboBox.getSelectedItem().equals(CONNECT_STRING_BUFFERS[0])) {
 				// connection
 				if(checkUserConnectionConfirmation()) {